@@ -0,0 +1,48 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+CLASSES=$DIR/../classes
+ARCHIVE=$CLASSES/cafe.jsa
+
+# only compile when a source file is newer than the compiled program
+if [ ! -f $CLASSES/Cafe.class ] || [ -n "$(find $DIR/../src -name '*.java' -newer $CLASSES/Cafe.class)" ]; then
+   javac -d $CLASSES $DIR/../src/*.java
+   rm -f $ARCHIVE
+fi
+
+# the first run dumps the driver and Cafe classes into an AppCDS archive,
+# later runs map it instead of loading and verifying every class again
+if [ -f $ARCHIVE ]; then
+   CDS="-XX:SharedArchiveFile=$ARCHIVE -Xshare:auto"
+else
+   CDS="-XX:ArchiveClassesAtExit=$ARCHIVE"
+fi
+
+#run the java program
+#Use your database name and portss
+#Add -Dcafe.statusFlushMillis=<ms> [-Dcafe.statusBatchSize=<n>] to write kitchen status changes behind
+#Append replica endpoints (host:port or port) to send browse and history reads to hot standbys
+#Set CAFE_OPTS=-Dcafe.startupTiming to print the time from launch to the first menu
+#Add -Dcafe.timeout.<Operation>=<ms> (or -Dcafe.timeout.default) to bound menu operations, e.g. -Dcafe.timeout.BrowseMenuName=500
+#Add -Dcafe.statementTimeoutMillis=<ms> and -Dcafe.lockTimeoutMillis=<ms> to change the server side limits
+#Add -Dcafe.admission.maxConcurrent=<n> and -Dcafe.admission.targetMillis=<ms> to tune admission control, -Dcafe.priority.<Operation>=ORDER_ENTRY|BROWSE|REPORT to reclassify an operation
+#Add -Dcafe.offlineFile=<path> to keep taking orders in a journal while the database is down ([-Dcafe.reconnectSeconds=<s>]), -Dcafe.store=memory to use only the journal
+#Set CAFE_JFR=<file.jfr> to record the session with scripts/cafe.jfc and print the top operations, CPU, database read, allocation and contention sites on exit
+if [ -n "$CAFE_JFR" ]; then
+   JFR="-XX:StartFlightRecording=settings=$DIR/cafe.jfc,filename=$CAFE_JFR,dumponexit=true"
+fi
+if [ $# -eq 0 ]; then
+   set -- mydb $PGPORT
+fi
+if [ -n "$CAFE_JFR" ]; then
+   # summarize the recording even when Cafe fails, then exit with its status
+   STATUS=0
+   java $CDS $JFR $CAFE_OPTS -cp $CLASSES:$CLASSPATH Cafe "$@" || STATUS=$?
+   java -cp $CLASSES JfrSummary $CAFE_JFR
+   exit $STATUS
+else
+   java $CDS $CAFE_OPTS -cp $CLASSES:$CLASSPATH Cafe "$@"
+fi
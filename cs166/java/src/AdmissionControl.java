@@ -0,0 +1,266 @@
+/*
+ * Admission control for database work
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * Decides which statement may run against one database when more work
+ * arrives than it can take.
+ *
+ * Work is sorted into priority classes. A class may only start statements
+ * while no higher class is waiting, and only up to its share of the overall
+ * limit, so reports never take the slots order entry needs. Work that cannot
+ * start waits in a bounded queue per class; when that queue is full the
+ * work is shed right away instead of piling up.
+ *
+ * The overall limit adapts to the observed latency (additive increase,
+ * multiplicative decrease): while order entry and browsing statements
+ * finish within the target latency the limit grows by one slot per limit
+ * statements, and the first slow statement of a window cuts it by a fifth.
+ *
+ *   -Dcafe.admission.maxConcurrent=<n>   upper bound of the limit (16)
+ *   -Dcafe.admission.targetMillis=<ms>   target statement latency (200)
+ *   -Dcafe.admission.queue.<CLASS>=<n>   queue length of a class
+ */
+public class AdmissionControl {
+
+   /**
+    * Priority classes, highest first
+    */
+   public enum Priority {
+      ORDER_ENTRY (1.0, 64),  // registers and kitchen status updates
+      BROWSE (0.75, 32),      // menu and order lookups
+      REPORT (0.25, 8);       // manager reports and bulk reads
+
+      final double share;
+      final int queue;
+
+      Priority (double share, int queue) {
+         this.share = share;
+         this.queue = queue;
+      }
+   }//end Priority
+
+   // one queued statement
+   private static class Waiter {
+      boolean admitted = false;
+   }//end Waiter
+
+   private static final int MIN_LIMIT = 2;
+
+   // -Dcafe.priority.<operation> overrides, checked once when the class loads
+   private static final Map<String, Priority> OVERRIDES = overrides();
+
+   private final int _maxLimit;
+   private final long _targetNanos;
+   private final int[] _maxQueue = new int[Priority.values().length];
+   private final int[] _running = new int[Priority.values().length];
+   private final long[] _admitted = new long[Priority.values().length];
+   private final long[] _shed = new long[Priority.values().length];
+   private final List<ArrayDeque<Waiter>> _queues = new ArrayList<ArrayDeque<Waiter>>();
+   private double _limit;
+   private int _totalRunning = 0;
+   private long _lastDecreaseNanos = 0;
+
+   /**
+    * Creates the admission control of one database from the system
+    * properties above
+    */
+   public AdmissionControl () {
+      this._maxLimit = Integer.getInteger("cafe.admission.maxConcurrent", 16);
+      this._targetNanos = Long.getLong("cafe.admission.targetMillis", 200) * 1000000L;
+      this._limit = this._maxLimit;
+      for (Priority p : Priority.values()) {
+         _maxQueue[p.ordinal()] = Integer.getInteger("cafe.admission.queue." + p.name(), p.queue);
+         _queues.add(new ArrayDeque<Waiter>());
+      }
+   }//end AdmissionControl
+
+   /**
+    * Maps an operation to its class. -Dcafe.priority.<operation>=<CLASS>
+    * overrides the built in mapping.
+    *
+    * @param operation the operation name, null outside of an operation
+    * @return the priority class
+    */
+   public static Priority priorityOf (String operation) {
+      if (operation == null)
+         return Priority.BROWSE;
+      Priority configured = OVERRIDES.get(operation);
+      if (configured != null)
+         return configured;
+      switch (operation) {
+         case "AddOrder":
+         case "UpdateOrder":
+         case "EmployeeUpdateOrder":
+         case "ViewOrderStatus":
+            return Priority.ORDER_ENTRY;
+         case "ViewCurrentOrder":
+         case "ViewOrderHistory":
+         case "PopularItems":
+         case "ImportUsers":
+         case "UpdateMenu":
+            return Priority.REPORT;
+         default:
+            return Priority.BROWSE;
+      }
+   }//end priorityOf
+
+   // reads the overrides, an unknown class keeps the built in mapping
+   private static Map<String, Priority> overrides () {
+      Map<String, Priority> overrides = new HashMap<String, Priority>();
+      String prefix = "cafe.priority.";
+      for (String key : System.getProperties().stringPropertyNames()) {
+         if (!key.startsWith(prefix))
+            continue;
+         String value = System.getProperty(key).trim();
+         try {
+            overrides.put(key.substring(prefix.length()), Priority.valueOf(value));
+         }catch (IllegalArgumentException e) {
+            System.err.println("Ignoring -D" + key + "=" + value + ", the class must be one of ORDER_ENTRY, BROWSE or REPORT");
+         }
+      }
+      return overrides;
+   }//end overrides
+
+   /**
+    * Waits until a statement of the given class may run
+    *
+    * @param p the priority class
+    * @param timeoutMillis longest time to wait
+    * @throws java.sql.SQLTransientException when the queue of the class is full
+    * @throws java.sql.SQLTimeoutException when the statement was not admitted in time
+    */
+   public synchronized void acquire (Priority p, long timeoutMillis) throws SQLException {
+      int c = p.ordinal();
+      if (_queues.get(c).isEmpty() && canRun(p)) {
+         start(p);
+         return;
+      }
+      if (_queues.get(c).size() >= _maxQueue[c]) {
+         ++_shed[c];
+         throw new SQLTransientException("The cafe is too busy right now, please try again");
+      }
+
+      Waiter w = new Waiter();
+      _queues.get(c).add(w);
+      long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+      try {
+         while (!w.admitted) {
+            long left = (deadline - System.nanoTime()) / 1000000L;
+            if (left <= 0)
+               throw new SQLTimeoutException("waited too long for the database");
+            wait(left);
+         }
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLTransientException("Interrupted while waiting for the database");
+      }finally {
+         if (!w.admitted)
+            _queues.get(c).remove(w);
+      }
+   }//end acquire
+
+   /**
+    * Ends a statement admitted with acquire
+    *
+    * @param p the priority class it was admitted in
+    * @param latencyNanos how long the statement took
+    */
+   public synchronized void release (Priority p, long latencyNanos) {
+      --_running[p.ordinal()];
+      --_totalRunning;
+      // reports are slow by nature and say nothing about overload
+      if (p != Priority.REPORT)
+         adapt(latencyNanos);
+      dispatch();
+   }//end release
+
+   private void adapt (long latencyNanos) {
+      long now = System.nanoTime();
+      if (latencyNanos > _targetNanos) {
+         // one decrease per window, statements already running were
+         // admitted under the old limit and will report slow as well
+         if (now - _lastDecreaseNanos > _targetNanos) {
+            _limit = Math.max(MIN_LIMIT, _limit * 0.8);
+            _lastDecreaseNanos = now;
+         }
+      }
+      else {
+         _limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+      }
+   }//end adapt
+
+   // a class may start while no higher class waits and it is below its share
+   private boolean canRun (Priority p) {
+      for (Priority higher : Priority.values()) {
+         if (higher == p)
+            break;
+         if (!_queues.get(higher.ordinal()).isEmpty())
+            return false;
+      }
+      int limit = (int) _limit;
+      int share = Math.max(1, (int) (limit * p.share));
+      return _totalRunning < limit && _running[p.ordinal()] < share;
+   }//end canRun
+
+   private void start (Priority p) {
+      ++_running[p.ordinal()];
+      ++_admitted[p.ordinal()];
+      ++_totalRunning;
+   }//end start
+
+   // admits queued work, highest class first
+   private void dispatch () {
+      boolean woke = false;
+      for (Priority p : Priority.values()) {
+         ArrayDeque<Waiter> queue = _queues.get(p.ordinal());
+         while (!queue.isEmpty() && canRun(p)) {
+            queue.poll().admitted = true;
+            start(p);
+            woke = true;
+         }
+      }
+      if (woke)
+         notifyAll();
+   }//end dispatch
+
+   /**
+    * @return one line per class with its counters, and the current limit
+    */
+   public synchronized String summary () {
+      StringBuilder s = new StringBuilder("Admission limit " + (int) _limit + " of " + _maxLimit);
+      for (Priority p : Priority.values()) {
+         int c = p.ordinal();
+         s.append("\n\t").append(p).append(": ").append(_admitted[c]).append(" admitted, ")
+          .append(_shed[c]).append(" shed, ").append(_queues.get(c).size()).append(" waiting");
+      }
+      return s.toString();
+   }//end summary
+
+   /**
+    * @return true once work had to be shed
+    */
+   public synchronized boolean hasShed () {
+      for (long shed : _shed)
+         if (shed > 0)
+            return true;
+      return false;
+   }//end hasShed
+
+}//end AdmissionControl
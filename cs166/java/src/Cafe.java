@@ -17,13 +17,30 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Timestamp;
 import java.io.File;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 
@@ -37,13 +54,104 @@ public class Cafe {
    //login info for later use
    private static String authorisedUser = null;
 
+   // item popularity over every shard, created once a manager first asks
+   private static volatile PopularityTracker popularity = null;
+
    // reference to physical database connection.
-   private Connection _connection = null;
+   private volatile Connection _connection = null;
+
+   // connection being opened in the background while the menu renders
+   private CompletableFuture<Connection> _connecting = null;
+
+   // connection URL, used to open the pooled connections of async queries
+   private String _url = null;
+
+   // bounded executor and connection pool behind the async query methods
+   private ThreadPoolExecutor _asyncExecutor = null;
+   private ConnectionPool _asyncPool = null;
+
+   // optional write-behind buffer for ItemStatus transitions
+   private ItemStatusBuffer _statusBuffer = null;
+
+   // optional hot standbys serving read-only queries
+   private ReplicaRouter _replicas = null;
+
+   // reads stay on the primary for this long after the session wrote
+   private long _readYourWritesMillis = 5000;
+   private volatile long _lastWriteMillis = 0;
+
+   // shard group this database belongs to, null when not sharded
+   private CafeShards _shards = null;
+
+   // order ids handed out from blocks reserved on orders_orderid_seq
+   private final OrderIdAllocator _orderIds = new OrderIdAllocator (this, "orders_orderid_seq");
+
+   // time budget of operations without a cafe.timeout.<name> of their own
+   private long _defaultBudgetMillis = 5000;
+
+   // server side limits set on every primary connection
+   private String _sessionLimits = null;
+
+   // cancels statements still running at their deadline
+   private static final ScheduledExecutorService _canceller = Executors.newSingleThreadScheduledExecutor (r -> {
+      Thread t = new Thread (r, "cafe-canceller");
+      t.setDaemon (true);
+      return t;
+   });
+
+   // admission and deadline state of a statement until it is closed
+   private static class StatementGuard {
+      AdmissionControl.Priority priority;
+      long started;
+      ScheduledFuture<?> deadline;
+      final AtomicBoolean done = new AtomicBoolean ();
+   }//end StatementGuard
+   private final Map<Statement, StatementGuard> _guards = new ConcurrentHashMap<Statement, StatementGuard>();
+
+   // decides which statements may run when the database is overloaded
+   private final AdmissionControl _admission = new AdmissionControl ();
+
+   // prep time statistics behind order ETAs, read in the background
+   private volatile PrepTimeEstimator _prepTimes = null;
+   private boolean _prepTimesLoading = false;
+
+   // last result of each cached read, shown when the database answers too late
+   private final Map<String, ResultTable> _readCache = new ConcurrentHashMap<String, ResultTable>();
+
+   // storage of the register operations, the database itself and the
+   // journal taking over while it cannot be reached (-Dcafe.offlineFile)
+   private final CafeStore _postgres = new PostgresStore (this);
+   private MemoryStore _memory = null;
+   private boolean _memoryOnly = false;
+   private volatile boolean _offline = false;
+   private long _reconnectSeconds = 10;
+   private ScheduledFuture<?> _reconnect = null;
+
+   // reconnects offline registers and sends the orders they took
+   private static final ScheduledExecutorService _reconnector = Executors.newSingleThreadScheduledExecutor (r -> {
+      Thread t = new Thread (r, "cafe-reconnect");
+      t.setDaemon (true);
+      return t;
+   });
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
+   // Time spent waiting for the user does not count against the deadline
+   // of the operation in progress.
    static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+                                new InputStreamReader(System.in)) {
+      @Override
+      public String readLine() throws java.io.IOException {
+         long started = System.nanoTime();
+         try{
+            return super.readLine();
+         }finally{
+            Operation op = Operation.current();
+            if (op != null)
+               op.extend(System.nanoTime() - started);
+         }
+      }
+   };
 
    /**
     * Creates a new instance of Cafe
@@ -53,16 +161,60 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe (String dbname, String dbport) throws SQLException {
+      this (dbname, dbport, new String[0]);
+   }//end Cafe
+
+   /**
+    * Creates a new instance of Cafe that sends read-only queries to the
+    * given hot standby replicas
+    *
+    * @param dbname the name of the database
+    * @param dbport the port of the primary server, or its host:port
+    * @param replicas replica endpoints as host:port or port
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe (String dbname, String dbport, String[] replicas) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://127.0.0.1:" + dbport + "/" + dbname;
+         String url = CafeShardTool.url (dbname, dbport);
          System.out.println ("Connection URL: " + url + "\n");
+         this._url = url;
+
+         // obtain a physical connection in the background, the driver is
+         // registered by DriverManager on first use
+         this._connecting = CompletableFuture.supplyAsync(() -> {
+            try{
+               return DriverManager.getConnection(url);
+            }catch (SQLException e){
+               throw new CompletionException(e);
+            }//end try
+         });
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url);
-         System.out.println("Done");
+         // kitchen status changes are written behind when a flush interval is given
+         String flushMillis = System.getProperty("cafe.statusFlushMillis");
+         if (flushMillis != null) {
+            int maxPending = Integer.parseInt(System.getProperty("cafe.statusBatchSize", "100"));
+            this._statusBuffer = new ItemStatusBuffer(url, Long.parseLong(flushMillis), maxPending);
+         }
+
+         // every statement runs within the deadline of its operation, the
+         // server additionally gives up on runaway statements and lock waits
+         this._defaultBudgetMillis = Long.getLong("cafe.timeout.default", 5000);
+         this._sessionLimits = String.format("SET statement_timeout = %d; SET lock_timeout = %d",
+                                             Long.getLong("cafe.statementTimeoutMillis", 30000),
+                                             Long.getLong("cafe.lockTimeoutMillis", 2000));
+         TimeoutStats.register();
+
+         if (replicas.length > 0) {
+            double maxLag = Double.parseDouble(System.getProperty("cafe.replicaMaxLagSeconds", "2"));
+            this._readYourWritesMillis = Long.parseLong(System.getProperty("cafe.readYourWritesMillis", "5000"));
+            this._replicas = new ReplicaRouter(dbname, replicas, maxLag,
+                                               Integer.parseInt(System.getProperty("cafe.asyncConnections", "4")),
+                                               this._sessionLimits);
+            System.out.println("Routing reads to " + replicas.length + " replica(s)");
+         }
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -70,22 +222,229 @@ public class Cafe {
       }//end catch
    }//end Cafe
 
+   /**
+    * Waits for the background connection to be established. Exits like the
+    * synchronous connect used to when the database cannot be reached,
+    * unless the register can continue offline.
+    *
+    * @return the physical connection
+    * @throws java.sql.SQLException when the register is offline
+    */
+   private Connection connection () throws SQLException {
+      if (this._offline)
+         throw offline ();
+      if (this._connection == null){
+         try{
+            long started = Operation.connectionWaitStart ();
+            Connection c;
+            try{
+               c = this._connecting.join();
+            }finally{
+               Operation.connectionWaitEnd (started);
+            }//end try
+            applySessionLimits (c);
+            this._connection = c;
+         }catch (SQLException e){
+            throw linkDown (e);
+         }catch (CompletionException e){
+            throw linkDown (e.getCause());
+         }//end try
+      }//end if
+      return this._connection;
+   }//end connection
+
+   private void applySessionLimits (Connection c) throws SQLException {
+      Statement stmt = c.createStatement ();
+      stmt.execute (this._sessionLimits);
+      stmt.close ();
+   }//end applySessionLimits
+
+   private static SQLException offline () {
+      return new SQLException ("The register is offline, only the menu and new orders are available", "08006");
+   }//end offline
+
+   // exits when there is no offline store to continue with
+   private SQLException linkDown (Throwable cause) {
+      if (this._memory == null){
+         System.err.println("Error - Unable to Connect to Database: " + cause.getMessage() );
+         System.out.println("Make sure you started postgres on this machine");
+         System.exit(-1);
+      }//end if
+      goOffline ();
+      return offline ();
+   }//end linkDown
+
+   /**
+    * Keeps the register taking orders while the database cannot be reached.
+    * The journal holds a copy of the menu and the users, refreshed whenever
+    * the database is reachable, and the orders taken offline until they are
+    * in the database.
+    *
+    * @param file the journal
+    * @param memoryOnly true to never use the database (-Dcafe.store=memory)
+    * @throws java.io.IOException when the journal cannot be read or created
+    */
+   public void enableOfflineStore (File file, boolean memoryOnly) throws IOException {
+      this._memory = new MemoryStore (file);
+      this._memoryOnly = memoryOnly;
+      this._reconnectSeconds = Long.getLong ("cafe.reconnectSeconds", 10);
+      if (memoryOnly){
+         this._offline = true;
+         System.out.println ("Running on the offline store only, " + this._memory.pendingOrders () + " order(s) waiting");
+      }
+      else {
+         // orders left from an earlier run are sent right away
+         startReconnecting (0);
+      }//end if
+   }//end enableOfflineStore
+
+   /**
+    * Runs a register operation on the database, or on the offline store
+    * while the database cannot be reached. An operation failing because
+    * the connection broke is run again on the offline store; orders are
+    * placed with an id from reserveOrderId, so one the database took anyway
+    * is not sent twice.
+    *
+    * @param call the operation
+    * @return what the operation returned
+    * @throws java.sql.SQLException when the operation failed
+    */
+   public <T> T withStore (CafeStore.Call<T> call) throws SQLException {
+      if (this._offline && this._memory != null)
+         return call.call (this._memory);
+      try{
+         return call.call (this._postgres);
+      }catch (SQLException e){
+         String state = e.getSQLState ();
+         if (this._memory == null || state == null || !state.startsWith ("08"))
+            throw e;
+         goOffline ();
+         return call.call (this._memory);
+      }//end try
+   }//end withStore
+
+   /**
+    * Reserves the id of a new order before it is stored. When the database
+    * breaks off while the order is inserted, the offline store takes it
+    * with that id and its sync recognises the order if the insert went
+    * through after all.
+    *
+    * @return the id, 0 while the register is offline
+    * @throws java.sql.SQLException when no id could be reserved
+    */
+   public int reserveOrderId () throws SQLException {
+      if (this._offline && this._memory != null)
+         return 0;
+      try{
+         return nextOrderId ();
+      }catch (SQLException e){
+         String state = e.getSQLState ();
+         if (this._memory == null || state == null || !state.startsWith ("08"))
+            throw e;
+         goOffline ();
+         return 0;
+      }//end try
+   }//end reserveOrderId
+
+   /**
+    * @return true while register operations run on the offline store
+    */
+   public boolean isOffline () {
+      return this._offline;
+   }//end isOffline
+
+   private synchronized void goOffline () {
+      if (this._offline)
+         return;
+      this._offline = true;
+      System.out.println ("The database cannot be reached, the register continues offline");
+      Connection broken = this._connection;
+      this._connection = null;
+      if (broken != null){
+         try{
+            broken.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end if
+      startReconnecting (this._reconnectSeconds);
+   }//end goOffline
+
+   private synchronized void startReconnecting (long delaySeconds) {
+      if (this._reconnect == null && !this._memoryOnly)
+         this._reconnect = _reconnector.scheduleWithFixedDelay (this::reconnect, delaySeconds, this._reconnectSeconds, TimeUnit.SECONDS);
+   }//end startReconnecting
+
+   private synchronized void stopReconnecting () {
+      // a link lost meanwhile keeps the task running
+      if (this._reconnect != null && !this._offline){
+         this._reconnect.cancel (false);
+         this._reconnect = null;
+      }//end if
+   }//end stopReconnecting
+
+   // reopens the connection, then sends the offline orders and refreshes
+   // the offline copy of menu and users on a connection of its own
+   private void reconnect () {
+      try{
+         if (this._offline){
+            Connection c = DriverManager.getConnection (this._url);
+            applySessionLimits (c);
+            synchronized (this){
+               this._connection = c;
+               this._offline = false;
+            }
+            System.out.println ("\nThe database is back, the register is online again");
+         }//end if
+         // reported as an operation of its own, it runs on no user's behalf
+         Operation op = beginOperation ("OfflineSync");
+         try{
+            Connection c = DriverManager.getConnection (this._url);
+            long started = Operation.databaseStart ();
+            try{
+               this._memory.syncTo (c, this._orderIds);
+               this._memory.snapshot (c);
+            }finally{
+               Operation.databaseEnd (started);
+               c.close ();
+            }//end try
+         }finally{
+            op.end ();
+         }//end try
+         stopReconnecting ();
+      }catch (SQLException e){
+         // tried again at the next interval
+      }//end try
+   }//end reconnect
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql) throws SQLException {
+      syncStatusBuffer (sql);
+      this._lastWriteMillis = System.currentTimeMillis();
+      return executeUpdate (connection(), sql);
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   private int executeUpdate (Connection connection, String sql) throws SQLException {
+      Statement stmt = null;
+      try{
+         // creates a statement object
+         stmt = createStatement (connection);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         return timedUpdate (stmt, sql);
+      }catch (SQLException e){
+         throw timedOut (e);
+      }finally{
+         // close the instruction
+         closeStatement (stmt);
+      }//end try
    }//end executeUpdate
 
    /**
@@ -98,37 +457,78 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
+      return executeQueryAndPrintResult (connection(), query);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Same as executeQueryAndPrintResult but for read-only queries, which are
+    * served by a replica when one is current enough.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      Connection replica = readConnection ();
+      if (replica != null) {
+         try{
+            return executeQueryAndPrintResult (replica, query);
+         }catch (SQLTimeoutException e){
+            // the deadline is spent, the primary would not make it either
+            throw e;
+         }catch (SQLException e){
+            // fail over to the primary
+            this._replicas.markFailed (replica);
+         }//end try
+      }//end if
+      return executeQueryAndPrintResult (connection(), query);
+   }//end executeReadQueryAndPrintResult
+
+   private int executeQueryAndPrintResult (Connection connection, String query) throws SQLException {
+      syncStatusBuffer (query);
+
+      Statement stmt = null;
+      try{
+         // creates a statement object
+         stmt = createStatement (connection);
+
+         // issues the query instruction
+         ResultSet rs = timedQuery (stmt, query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+         long bytes = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+	    if(outputHeader){
+	       for(int i = 1; i <= numCol; i++){
+	   	System.out.print(rsmd.getColumnName(i) + "\t");
+	       }
+	       System.out.println();
+	       outputHeader = false;
 	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+            for (int i=1; i<=numCol; ++i) {
+               String value = rs.getString (i);
+               bytes += sizeOf (value);
+               System.out.print (value + "\t");
+            }
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         Operation.fetched (rowCount, bytes);
+         return rowCount;
+      }catch (SQLException e){
+         throw timedOut (e);
+      }finally{
+         closeStatement (stmt);
+      }//end try
    }//end executeQuery
 
    /**
@@ -141,33 +541,128 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      return executeQueryAndReturnResult (connection(), query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult but for read-only queries, which are
+    * served by a replica when one is current enough.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+      Connection replica = readConnection ();
+      if (replica != null) {
+         try{
+            return executeQueryAndReturnResult (replica, query);
+         }catch (SQLTimeoutException e){
+            // the deadline is spent, the primary would not make it either
+            throw e;
+         }catch (SQLException e){
+            // fail over to the primary
+            this._replicas.markFailed (replica);
+         }//end try
+      }//end if
+      return executeQueryAndReturnResult (connection(), query);
+   }//end executeReadQueryAndReturnResult
+
+   private List<List<String>> executeQueryAndReturnResult (Connection connection, String query) throws SQLException { 
+      syncStatusBuffer (query);
+
+      Statement stmt = null;
+      try{
+         // creates a statement object 
+         stmt = createStatement (connection); 
  
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
+         // issues the query instruction 
+         ResultSet rs = timedQuery (stmt, query); 
  
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
  
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+         // iterates through the result set and saves the data returned by the query. 
+         List<List<String>> result  = new ArrayList<List<String>>(); 
+         long bytes = 0;
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i) {
+               String value = rs.getString (i);
+               bytes += sizeOf (value);
+               record.add(value); 
+            }
+            result.add(record); 
+         }//end while 
+         Operation.fetched (result.size (), bytes);
+         return result; 
+      }catch (SQLException e){
+         throw timedOut (e);
+      }finally{
+         closeStatement (stmt);
+      }//end try
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as a typed
+    * table, so numbers, flags and timestamps need no parsing.
+    *
+    * @param query the input query string
+    * @return the query result stored column by column
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryAndReturnTable (String query) throws SQLException {
+      return executeQueryAndReturnTable (connection(), query);
+   }//end executeQueryAndReturnTable
+
+   /**
+    * Same as executeQueryAndReturnTable but for read-only queries, which are
+    * served by a replica when one is current enough.
+    *
+    * @param query the input query string
+    * @return the query result stored column by column
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeReadQueryAndReturnTable (String query) throws SQLException {
+      Connection replica = readConnection ();
+      if (replica != null) {
+         try{
+            return executeQueryAndReturnTable (replica, query);
+         }catch (SQLTimeoutException e){
+            // the deadline is spent, the primary would not make it either
+            throw e;
+         }catch (SQLException e){
+            // fail over to the primary
+            this._replicas.markFailed (replica);
+         }//end try
+      }//end if
+      return executeQueryAndReturnTable (connection(), query);
+   }//end executeReadQueryAndReturnTable
+
+   private ResultTable executeQueryAndReturnTable (Connection connection, String query) throws SQLException {
+      syncStatusBuffer (query);
+
+      Statement stmt = null;
+      try{
+         // creates a statement object
+         stmt = createStatement (connection);
+
+         // issues the query instruction and keeps the rows column by column
+         ResultTable table = ResultTable.from (timedQuery (stmt, query));
+         Operation.fetched (table.rowCount (), table.byteSize ());
+         return table;
+      }catch (SQLException e){
+         throw timedOut (e);
+      }finally{
+         closeStatement (stmt);
+      }//end try
+   }//end executeQueryAndReturnTable
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -177,22 +672,350 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       syncStatusBuffer (query);
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       Statement stmt = null;
+       try{
+          // creates a statement object
+          stmt = createStatement (connection());
 
-       int rowCount = 0;
+          // issues the query instruction
+          ResultSet rs = timedQuery (stmt, query);
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          Operation.fetched (rowCount, 0);
+          return rowCount;
+       }catch (SQLException e){
+          throw timedOut (e);
+       }finally{
+          closeStatement (stmt);
+       }//end try
    }
 
+   /**
+    * Asynchronous variant of executeQueryAndReturnTable. The query runs on a
+    * bounded executor over pooled connections, so independent queries can
+    * be in flight at the same time and be composed by the caller.
+    *
+    * @param query the input query string
+    * @return a future completing with the query result
+    */
+   public CompletableFuture<ResultTable> executeQueryAndReturnTableAsync (String query) {
+      return submitAsync (() -> {
+         Connection c = this._asyncPool.take ();
+         try{
+            return executeQueryAndReturnTable (c, query);
+         }finally{
+            this._asyncPool.release (c);
+         }//end try
+      });
+   }//end executeQueryAndReturnTableAsync
+
+   /**
+    * Asynchronous variant of executeReadQueryAndReturnTable. Uses a pooled
+    * connection to a current replica when there is one and falls back to a
+    * pooled primary connection otherwise, so concurrent reads never share a
+    * connection.
+    *
+    * @param query the input query string
+    * @return a future completing with the query result
+    */
+   public CompletableFuture<ResultTable> executeReadQueryAndReturnTableAsync (String query) {
+      // read-your-writes is decided by the session, before the task queues
+      if (!mayReadReplica ())
+         return executeQueryAndReturnTableAsync (query);
+      return submitAsync (() -> {
+         ConnectionPool replica = this._replicas.pickPool ();
+         if (replica != null) {
+            Connection c = null;
+            try{
+               c = replica.take ();
+               return executeQueryAndReturnTable (c, query);
+            }catch (SQLTimeoutException e){
+               throw e;
+            }catch (SQLException e){
+               // fail over to the primary
+               this._replicas.markFailed (replica);
+            }finally{
+               if (c != null)
+                  replica.release (c);
+            }//end try
+         }//end if
+         Connection c = this._asyncPool.take ();
+         try{
+            return executeQueryAndReturnTable (c, query);
+         }finally{
+            this._asyncPool.release (c);
+         }//end try
+      });
+   }//end executeReadQueryAndReturnTableAsync
+
+   /**
+    * Asynchronous variant of executeQueryAndReturnResult
+    *
+    * @param query the input query string
+    * @return a future completing with the query result as a list of records
+    */
+   public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (String query) {
+      return submitAsync (() -> {
+         Connection c = this._asyncPool.take ();
+         try{
+            return executeQueryAndReturnResult (c, query);
+         }finally{
+            this._asyncPool.release (c);
+         }//end try
+      });
+   }//end executeQueryAndReturnResultAsync
+
+   /**
+    * Asynchronous variant of executeUpdate. Updates issued this way are not
+    * ordered with respect to each other, only use it for independent ones.
+    *
+    * @param sql the input SQL string
+    * @return a future completing with the number of rows changed
+    */
+   public CompletableFuture<Integer> executeUpdateAsync (String sql) {
+      this._lastWriteMillis = System.currentTimeMillis();
+      return submitAsync (() -> {
+         syncStatusBuffer (sql);
+         Connection c = this._asyncPool.take ();
+         try{
+            return executeUpdate (c, sql);
+         }finally{
+            this._asyncPool.release (c);
+         }//end try
+      });
+   }//end executeUpdateAsync
+
+   // runs a task on the async executor, creating it on first use
+   private <T> CompletableFuture<T> submitAsync (Callable<T> task) {
+      synchronized (this) {
+         if (this._asyncExecutor == null) {
+            int threads = Integer.parseInt(System.getProperty("cafe.asyncConnections", "4"));
+            this._asyncPool = new ConnectionPool (this._url, threads, this._sessionLimits);
+            // a full queue makes the caller run the query itself
+            this._asyncExecutor = new ThreadPoolExecutor (threads, threads, 60, TimeUnit.SECONDS,
+                                                          new ArrayBlockingQueue<Runnable>(64), r -> {
+               Thread t = new Thread (r, "cafe-async");
+               t.setDaemon (true);
+               return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy ());
+         }//end if
+      }
+      CompletableFuture<T> result = new CompletableFuture<T>();
+      // the task runs within the deadline of the operation that submitted it
+      Operation op = Operation.current ();
+      this._asyncExecutor.execute (() -> {
+         Operation outer = Operation.swap (op);
+         try{
+            result.complete (task.call ());
+         }catch (Throwable e){
+            result.completeExceptionally (e);
+         }finally{
+            Operation.swap (outer);
+         }//end try
+      });
+      return result;
+   }//end submitAsync
+
+   /**
+    * Starts a user level operation. Every statement it issues, on this thread
+    * or through the async methods, has to finish within the budget given by
+    * -Dcafe.timeout.<name> in milliseconds, or -Dcafe.timeout.default.
+    *
+    * @param name the operation name, e.g. BrowseMenuName
+    * @return the operation, to be ended with end
+    */
+   public Operation beginOperation (String name) {
+      return Operation.begin (name, Long.getLong ("cafe.timeout." + name, this._defaultBudgetMillis));
+   }//end beginOperation
+
+   /**
+    * @return the admission control in front of this database
+    */
+   public AdmissionControl admission () {
+      return this._admission;
+   }//end admission
+
+   /**
+    * Admits database work that runs on a connection of its own, like the
+    * bulk reads and imports, as a report. The wait counts as connection
+    * wait of the current operation and is bounded by its deadline.
+    *
+    * @return when the work was admitted, to be passed to releaseReport
+    * @throws java.sql.SQLException when the work was shed or not admitted in time
+    */
+   public long admitReport () throws SQLException {
+      Operation op = Operation.current ();
+      long remaining = op != null ? op.remainingMillis () : this._defaultBudgetMillis;
+      long waiting = Operation.connectionWaitStart ();
+      try{
+         this._admission.acquire (AdmissionControl.Priority.REPORT, remaining);
+      }finally{
+         Operation.connectionWaitEnd (waiting);
+      }//end try
+      return System.nanoTime ();
+   }//end admitReport
+
+   /**
+    * Ends work admitted with admitReport
+    *
+    * @param admitted the value admitReport returned
+    */
+   public void releaseReport (long admitted) {
+      this._admission.release (AdmissionControl.Priority.REPORT, System.nanoTime () - admitted);
+   }//end releaseReport
+
+   /**
+    * Creates a statement bounded by the deadline of the current operation,
+    * or by the default budget outside of one. The statement first has to be
+    * admitted in the priority class of the operation. The driver only times
+    * out in whole seconds, so the statement is also cancelled at the exact
+    * deadline.
+    */
+   private Statement createStatement (Connection connection) throws SQLException {
+      Operation op = Operation.current ();
+      long remaining = op != null ? op.remainingMillis () : this._defaultBudgetMillis;
+      if (remaining <= 0)
+         throw new SQLTimeoutException ("deadline passed before the statement was sent");
+
+      StatementGuard guard = new StatementGuard ();
+      guard.priority = AdmissionControl.priorityOf (op != null ? op.name () : null);
+      long waiting = Operation.connectionWaitStart ();
+      try{
+         this._admission.acquire (guard.priority, remaining);
+      }finally{
+         Operation.connectionWaitEnd (waiting);
+      }//end try
+      guard.started = System.nanoTime ();
+      Statement stmt;
+      try{
+         remaining = op != null ? op.remainingMillis () : this._defaultBudgetMillis;
+         if (remaining <= 0)
+            throw new SQLTimeoutException ("deadline passed while waiting for the database");
+         stmt = connection.createStatement ();
+         stmt.setQueryTimeout ((int) ((remaining + 999) / 1000));
+      }catch (SQLException e){
+         this._admission.release (guard.priority, System.nanoTime () - guard.started);
+         throw e;
+      }//end try
+
+      this._guards.put (stmt, guard);
+      guard.deadline = _canceller.schedule (() -> {
+         // a statement closed in the meantime must not be cancelled, that
+         // would cancel whatever its connection runs now
+         if (!guard.done.compareAndSet (false, true))
+            return;
+         try{
+            stmt.cancel ();
+            TimeoutStats.cancelled ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }, remaining, TimeUnit.MILLISECONDS);
+      return stmt;
+   }//end createStatement
+
+   // the time until the database answered counts as database time of the
+   // current operation
+   private static ResultSet timedQuery (Statement stmt, String query) throws SQLException {
+      long started = Operation.databaseStart ();
+      try{
+         return stmt.executeQuery (query);
+      }finally{
+         Operation.databaseEnd (started);
+      }//end try
+   }//end timedQuery
+
+   private static int timedUpdate (Statement stmt, String sql) throws SQLException {
+      long started = Operation.databaseStart ();
+      try{
+         return stmt.executeUpdate (sql);
+      }finally{
+         Operation.databaseEnd (started);
+      }//end try
+   }//end timedUpdate
+
+   // approximate heap size of the characters of a value
+   private static long sizeOf (String value) {
+      return value == null ? 0 : 2L * value.length ();
+   }//end sizeOf
+
+   private void closeStatement (Statement stmt) throws SQLException {
+      if (stmt == null)
+         return;
+      StatementGuard guard = this._guards.remove (stmt);
+      if (guard != null) {
+         if (guard.done.compareAndSet (false, true))
+            guard.deadline.cancel (false);
+         this._admission.release (guard.priority, System.nanoTime () - guard.started);
+      }//end if
+      stmt.close ();
+   }//end closeStatement
+
+   /**
+    * Counts statements that ran out of time and names the operation in the
+    * error shown to the user. Other errors are returned unchanged.
+    */
+   private static SQLException timedOut (SQLException e) {
+      if (e instanceof SQLTimeoutException && e.getCause () instanceof SQLException)
+         return e;
+      // 55P03 lock_not_available is raised by lock_timeout
+      if ("55P03".equals (e.getSQLState ())) {
+         TimeoutStats.lockTimeout ();
+         return e;
+      }
+      // 57014 query_canceled covers statement_timeout, the driver's query
+      // timeout and our own cancel
+      if (e instanceof SQLTimeoutException || "57014".equals (e.getSQLState ())) {
+         TimeoutStats.deadlineExceeded ();
+         Operation op = Operation.current ();
+         return new SQLTimeoutException ((op != null ? op.name () : "Statement") + " took too long: " +
+                                         e.getMessage (), e.getSQLState (), e);
+      }
+      return e;
+   }//end timedOut
+
+   /**
+    * Same as executeReadQueryAndReturnTable for data that rarely changes,
+    * like the menu. The result is kept, and returned again when the database
+    * does not answer within the deadline.
+    *
+    * @param query the input query string
+    * @return the result table
+    * @throws java.sql.SQLException when failed and nothing was cached
+    */
+   public ResultTable executeCachedReadQueryAndReturnTable (String query) throws SQLException {
+      ResultTable result;
+      try{
+         result = executeReadQueryAndReturnTable (query);
+         this._readCache.put (query, result);
+      }catch (SQLTimeoutException e){
+         result = this._readCache.get (query);
+         if (result == null)
+            throw e;
+         TimeoutStats.cacheFallback ();
+         System.out.println ("The database is slow to answer, showing the last known version");
+      }//end try
+      return result;
+   }//end executeCachedReadQueryAndReturnTable
+
+   /**
+    * Method to get the id for a new order without a round trip in the common
+    * case, ids come from blocks reserved on orders_orderid_seq.
+    *
+    * @return a new, unused order id
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int nextOrderId () throws SQLException {
+      return Math.toIntExact (this._orderIds.next ());
+   }//end nextOrderId
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
@@ -203,19 +1026,249 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	Statement stmt = null;
+	try{
+	   stmt = createStatement (connection());
+	   ResultSet rs = timedQuery (stmt, String.format("Select currval('%s')", sequence));
+	   if (rs.next())
+		   return rs.getInt(1);
+	   return -1;
+	}catch (SQLException e){
+	   throw timedOut (e);
+	}finally{
+	   closeStatement (stmt);
+	}
    }
 
+   /**
+    * Method to change the status of an item, or of every item of an order
+    * when itemName is null. With write-behind enabled the change is buffered
+    * and coalesced with later changes to the same item.
+    *
+    * @param orderid the order to update
+    * @param itemName the item to update, null for the whole order
+    * @param status the new status
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void updateItemStatus (String orderid, String itemName, String status) throws SQLException {
+      if (this._statusBuffer != null) {
+         this._lastWriteMillis = System.currentTimeMillis();
+         this._statusBuffer.update(orderid, itemName, status);
+         return;
+      }//end if
+      Timestamp now = new Timestamp(System.currentTimeMillis());
+      if (itemName == null)
+         executeUpdate(String.format("UPDATE ItemStatus SET status = '%s', lastUpdated = '%s' WHERE orderid = '%s'", status, now, orderid));
+      else
+         executeUpdate(String.format("UPDATE ItemStatus SET status = '%s', lastUpdated = '%s' WHERE orderid = '%s' AND itemName = '%s'", status, now, orderid, itemName));
+   }//end updateItemStatus
+
+   /**
+    * Starts reading the prep time history in the background, so no customer
+    * waits for it. The pass is admitted as a report and yields to order
+    * entry; until it is done there are no estimates.
+    */
+   public void startPrepTimeEstimator () {
+      PrepTimeEstimator prepTimes;
+      synchronized (this) {
+         if (this._prepTimes == null)
+            this._prepTimes = new PrepTimeEstimator (this._url);
+         if (this._prepTimesLoading)
+            return;
+         this._prepTimesLoading = true;
+         prepTimes = this._prepTimes;
+      }
+      Thread loader = new Thread (() -> {
+         Operation op = Operation.begin ("PrepTimeHistory", Long.getLong ("cafe.timeout.PrepTimeHistory", 600000));
+         try{
+            long admitted = this.admitReport ();
+            long started = Operation.databaseStart ();
+            try{
+               prepTimes.refresh ();
+            }finally{
+               Operation.databaseEnd (started);
+               this.releaseReport (admitted);
+            }//end try
+         }catch (SQLException e){
+            System.err.println ("Unable to read the prep time history: " + e.getMessage ());
+         }finally{
+            op.end ();
+            synchronized (this) {
+               this._prepTimesLoading = false;
+            }
+         }//end try
+      }, "cafe-prep-times");
+      loader.setDaemon (true);
+      loader.start ();
+   }//end startPrepTimeEstimator
+
+   /**
+    * Estimates when an order will be ready from the history read by
+    * startPrepTimeEstimator, after catching up on the orders changed since.
+    *
+    * @param orderid the order
+    * @return the typical and the 90th percentile wait in seconds, or null
+    *         when the order is done, there is too little history or it is
+    *         still being read
+    * @throws java.sql.SQLException when the changes could not be read
+    */
+   public long[] estimateReadyTime (String orderid) throws SQLException {
+      PrepTimeEstimator prepTimes = this._prepTimes;
+      if (prepTimes == null || !prepTimes.isReady ()){
+         startPrepTimeEstimator ();
+         return null;
+      }//end if
+      long started = Operation.databaseStart ();
+      try{
+         prepTimes.refresh ();
+      }catch (SQLException e){
+         // changes may have been missed, the history is read again
+         startPrepTimeEstimator ();
+         throw e;
+      }finally{
+         Operation.databaseEnd (started);
+      }//end try
+      return prepTimes.estimate (Integer.parseInt (orderid.trim ()));
+   }//end estimateReadyTime
+
+   /**
+    * Makes this database a member of a shard group
+    *
+    * @param shards the shard group
+    */
+   public void setShards (CafeShards shards) {
+      this._shards = shards;
+   }//end setShards
+
+   /**
+    * @param login the user login
+    * @return the database holding the user and their orders
+    */
+   public Cafe shardFor (String login) {
+      if (this._shards == null)
+         return this;
+      return this._shards.forLogin (login);
+   }//end shardFor
+
+   /**
+    * @param orderid the order id
+    * @return the database holding the order, this one when no shard has it
+    * @throws java.sql.SQLException when a shard could not be queried
+    */
+   public Cafe shardForOrder (String orderid) throws SQLException {
+      if (this._shards == null)
+         return this;
+      Cafe shard = this._shards.forOrder (orderid);
+      return shard == null ? this : shard;
+   }//end shardForOrder
+
+   /**
+    * @return every database of the shard group, or just this one
+    */
+   public Cafe[] allShards () {
+      if (this._shards == null)
+         return new Cafe[] { this };
+      return this._shards.members ();
+   }//end allShards
+
+   /**
+    * Method to execute an update of a table that is replicated to every
+    * shard, i.e. Menu.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows changed over every shard
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateAllShards (String sql) throws SQLException {
+      if (this._shards == null)
+         return executeUpdate (sql);
+      return this._shards.executeUpdateAll (sql);
+   }//end executeUpdateAllShards
+
+   /**
+    * Method to execute a query on every shard and print the merged rows
+    *
+    * @param query the input query string
+    * @param sortColumn numeric column to order the merged rows by, or -1
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResultAllShards (String query, int sortColumn) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndPrintResult (query);
+      return this._shards.executeQueryAndPrintResultAll (query, sortColumn);
+   }//end executeQueryAndPrintResultAllShards
+
+   /**
+    * Picks the connection for a read-only query: a current replica, unless
+    * the session wrote recently and has to read its own writes. Buffered
+    * status changes only reach the primary when they are flushed, so reads
+    * stay on the primary until then and for the usual window after.
+    *
+    * @return a replica connection, or null to use the primary
+    */
+   private Connection readConnection () {
+      return mayReadReplica () ? this._replicas.pick () : null;
+   }//end readConnection
+
+   // whether replicas are configured and the session has no recent writes
+   private boolean mayReadReplica () {
+      if (this._replicas == null)
+         return false;
+      long lastWrite = this._lastWriteMillis;
+      if (this._statusBuffer != null){
+         if (this._statusBuffer.hasPending ())
+            return false;
+         lastWrite = Math.max (lastWrite, this._statusBuffer.lastFlushMillis ());
+      }//end if
+      return System.currentTimeMillis() - lastWrite >= this._readYourWritesMillis;
+   }//end mayReadReplica
+
+   /**
+    * Flushes buffered ItemStatus changes before a statement that reads or
+    * writes ItemStatus, so the session always sees its own changes.
+    */
+   private void syncStatusBuffer (String sql) throws SQLException {
+      if (this._statusBuffer != null && this._statusBuffer.hasPending()
+          && sql.toLowerCase().contains("itemstatus")){
+         long started = Operation.databaseStart ();
+         try{
+            this._statusBuffer.flush();
+         }finally{
+            Operation.databaseEnd (started);
+         }//end try
+      }//end if
+   }//end syncStatusBuffer
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._statusBuffer != null){
+         this._statusBuffer.close ();
+      }//end if
+      if (this._replicas != null){
+         this._replicas.cleanup ();
+      }//end if
+      if (this._prepTimes != null){
+         this._prepTimes.close ();
+      }//end if
+      if (this._memory != null){
+         synchronized (this){
+            if (this._reconnect != null)
+               this._reconnect.cancel (false);
+         }
+         this._memory.close ();
+      }//end if
+      if (this._asyncExecutor != null){
+         this._asyncExecutor.shutdown ();
+         this._asyncPool.close ();
+      }//end if
       try{
+         if (this._connection == null && this._connecting != null
+             && this._connecting.isDone() && !this._connecting.isCompletedExceptionally()){
+            this._connection = this._connecting.join();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -230,29 +1283,66 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 2) {
+      if (args.length < 2) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port>");
+            " <dbname> <port> [<replica host:port> ...]" +
+            " [-Dcafe.shards=<dbname>@<port>,...]");
          return;
       }//end if
 
       Greeting();
+      boolean firstMenu = true;
       Cafe esql = null;
+      CafeShards shards = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Cafe object and creates a physical
-         // connection.
+         // instantiate the Cafe object, the physical connection to the
+         // postgres JDBC driver is opened while the menu is shown.
          String dbname = args[0];
          String dbport = args[1];
-         esql = new Cafe (dbname, dbport);
+         String[] replicas = java.util.Arrays.copyOfRange(args, 2, args.length);
+         esql = new Cafe (dbname, dbport, replicas);
+
+         // the databases given in cafe.shards follow <dbname> <port> as shards 1..N-1
+         String shardList = System.getProperty("cafe.shards");
+         if (shardList != null) {
+            String[] endpoints = shardList.split(",");
+            Cafe[] members = new Cafe[endpoints.length + 1];
+            members[0] = esql;
+            for (int i = 0; i < endpoints.length; ++i) {
+               String[] endpoint = CafeShardTool.endpoint(endpoints[i].trim());
+               members[i + 1] = new Cafe (endpoint[0], endpoint[1]);
+            }
+            shards = new CafeShards (members);
+            for (Cafe member : members)
+               member.setShards (shards);
+         }
+
+         // a register keeps taking orders offline with a journal to fall
+         // back on, users and orders of a sharded cafe live on several
+         // databases the journal cannot stand in for
+         String offlineFile = System.getProperty("cafe.offlineFile");
+         boolean memoryOnly = "memory".equals(System.getProperty("cafe.store"));
+         if (offlineFile != null || memoryOnly) {
+            if (shards != null)
+               System.out.println("The offline store is not available with cafe.shards, ignored");
+            else
+               esql.enableOfflineStore(new File(offlineFile != null ? offlineFile : "cafe-offline.journal"), memoryOnly);
+         }
+
+         // order status estimates need the prep time history of every shard
+         for (Cafe member : esql.allShards())
+            member.startPrepTimeEstimator();
 
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
+            if (firstMenu) {
+               printStartupTime();
+               firstMenu = false;
+            }
             System.out.println("MAIN MENU");
             System.out.println("---------");
             System.out.println("1. Create user");
@@ -266,8 +1356,10 @@ public class Cafe {
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
+              // everything the user does happens on the shard holding their rows
+              Cafe session = esql.shardFor(authorisedUser);
               boolean usermenu = true;
-              String user_type = find_type(esql);
+              String user_type = find_type(session);
 	      switch (user_type){
 		case "Customer": 
 		  while(usermenu) {
@@ -283,13 +1375,13 @@ public class Cafe {
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: UpdateOrder(esql); break;
-                       case 5: ViewOrderHistory(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: UpdateUserInfo(esql); break;
+                       case 1: runOperation(session, "BrowseMenuName", () -> BrowseMenuName(session)); break;
+                       case 2: runOperation(session, "BrowseMenuType", () -> BrowseMenuType(session)); break;
+                       case 3: runOperation(session, "AddOrder", () -> AddOrder(session)); break;
+                       case 4: runOperation(session, "UpdateOrder", () -> UpdateOrder(session)); break;
+                       case 5: runOperation(session, "ViewOrderHistory", () -> ViewOrderHistory(session)); break;
+                       case 6: runOperation(session, "ViewOrderStatus", () -> ViewOrderStatus(session)); break;
+                       case 7: runOperation(session, "UpdateUserInfo", () -> UpdateUserInfo(session)); break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
@@ -308,13 +1400,13 @@ public class Cafe {
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: EmployeeUpdateOrder(esql); break;
-                       case 5: ViewCurrentOrder(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: UpdateUserInfo(esql); break;
+                       case 1: runOperation(session, "BrowseMenuName", () -> BrowseMenuName(session)); break;
+                       case 2: runOperation(session, "BrowseMenuType", () -> BrowseMenuType(session)); break;
+                       case 3: runOperation(session, "AddOrder", () -> AddOrder(session)); break;
+                       case 4: runOperation(session, "EmployeeUpdateOrder", () -> EmployeeUpdateOrder(session)); break;
+                       case 5: runOperation(session, "ViewCurrentOrder", () -> ViewCurrentOrder(session)); break;
+                       case 6: runOperation(session, "ViewOrderStatus", () -> ViewOrderStatus(session)); break;
+                       case 7: runOperation(session, "UpdateUserInfo", () -> UpdateUserInfo(session)); break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
@@ -331,17 +1423,21 @@ public class Cafe {
                     System.out.println("6. View Order Status");
                     System.out.println("7. Update User Info");
                     System.out.println("8. Update Menu");
+                    System.out.println("10. Popular Items");
+                    System.out.println("11. Import Users");
                     System.out.println(".........................");
                     System.out.println("9. Log out");
                       switch (readChoice()){
-                       case 1: BrowseMenuName(esql); break;
-                       case 2: BrowseMenuType(esql); break;
-                       case 3: AddOrder(esql); break;
-                       case 4: EmployeeUpdateOrder(esql); break;
-                       case 5: ViewCurrentOrder(esql); break;
-                       case 6: ViewOrderStatus(esql); break;
-                       case 7: ManagerUpdateUserInfo(esql); break;
-                       case 8: UpdateMenu(esql); break;
+                       case 1: runOperation(session, "BrowseMenuName", () -> BrowseMenuName(session)); break;
+                       case 2: runOperation(session, "BrowseMenuType", () -> BrowseMenuType(session)); break;
+                       case 3: runOperation(session, "AddOrder", () -> AddOrder(session)); break;
+                       case 4: runOperation(session, "EmployeeUpdateOrder", () -> EmployeeUpdateOrder(session)); break;
+                       case 5: runOperation(session, "ViewCurrentOrder", () -> ViewCurrentOrder(session)); break;
+                       case 6: runOperation(session, "ViewOrderStatus", () -> ViewOrderStatus(session)); break;
+                       case 7: runOperation(session, "ManagerUpdateUserInfo", () -> ManagerUpdateUserInfo(session)); break;
+                       case 8: runOperation(session, "UpdateMenu", () -> UpdateMenu(session)); break;
+                       case 10: runOperation(session, "PopularItems", () -> PopularItems(session)); break;
+                       case 11: runOperation(session, "ImportUsers", () -> ImportUsers(session)); break;
                        case 9: usermenu = false; break;
                        default : System.out.println("Unrecognized choice!"); break;
 		      }//end switch
@@ -356,8 +1452,18 @@ public class Cafe {
          try{
             if(esql != null) {
                System.out.print("Disconnecting from database...");
-               esql.cleanup ();
+               if (popularity != null)
+                  popularity.close ();
+               if (shards != null)
+                  shards.cleanup ();
+               else
+                  esql.cleanup ();
                System.out.println("Done\n\nBye !");
+               String timeouts = TimeoutStats.summary ();
+               if (!timeouts.isEmpty())
+                  System.out.println(timeouts);
+               if (esql.admission().hasShed())
+                  System.out.println(esql.admission().summary());
             }//end if
          }catch (Exception e) {
             // ignored.
@@ -365,6 +1471,29 @@ public class Cafe {
       }//end try
    }//end main
 
+   /*
+    * Runs one menu choice as an operation with its own time budget
+    **/
+   public static void runOperation(Cafe esql, String name, Runnable operation){
+      Operation op = esql.beginOperation(name);
+      try{
+         operation.run();
+      }finally{
+         op.end();
+      }
+   }//end runOperation
+
+   /*
+    * Reports the time from JVM start to the first menu when
+    * -Dcafe.startupTiming is set
+    **/
+   public static void printStartupTime(){
+      if (System.getProperty("cafe.startupTiming") == null)
+         return;
+      long started = java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime();
+      System.out.println("Startup: " + (System.currentTimeMillis() - started) + " ms to first menu");
+   }//end printStartupTime
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -409,7 +1538,7 @@ public class Cafe {
 
 	 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
 
-         esql.executeUpdate(query);
+         esql.shardFor(login).executeUpdate(query);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -427,9 +1556,7 @@ public class Cafe {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+         if (esql.shardFor(login).withStore(store -> store.checkPassword(login, password)))
 		return login;
          return null;
       }catch(Exception e){
@@ -441,7 +1568,7 @@ public class Cafe {
    public static boolean userExists(Cafe esql, String login){
       try{
          String query = String.format("SELECT * FROM Users WHERE login = '%s'", login);
-         int userNum = esql.executeQuery(query);
+         int userNum = esql.shardFor(login).executeQuery(query);
 	 if (userNum > 0)
 		return true;
          return false;
@@ -455,10 +1582,7 @@ public class Cafe {
       // Your code goes here.
       // ...
       try{
-         String query = String.format("SELECT type FROM Users WHERE login = '%s'", esql.authorisedUser);
-         List<List<String>> tuples = esql.executeQueryAndReturnResult(query);
-         // ...
-         return tuples.get(0).get(0);
+         return esql.withStore(store -> store.userType(authorisedUser));
       }
       catch(Exception e) {
          System.err.println (e.getMessage ());
@@ -470,8 +1594,7 @@ public class Cafe {
       // Your code goes here.
       // ...
       try{
-         String query = String.format("SELECT * FROM Menu ORDER BY itemName" );
-         esql.executeQueryAndPrintResult(query);
+         printMenu(esql.withStore(store -> store.menu("itemName")));
       }
       // ...
       catch(Exception e) {
@@ -483,23 +1606,34 @@ public class Cafe {
       // Your code goes here.
       // ...
       try {
-         String query = String.format("SELECT * FROM Menu ORDER BY type" );
-         esql.executeQueryAndPrintResult(query);
+         printMenu(esql.withStore(store -> store.menu("type")));
       }
       // ...
       catch(Exception e) {
          System.err.println (e.getMessage ());
       }
    }//end
+
+   // prints menu rows in the layout of executeQueryAndPrintResult
+   private static void printMenu(List<List<String>> rows){
+      if (!rows.isEmpty()) {
+         for (String column : CafeStore.MENU_COLUMNS)
+            System.out.print(column + "\t");
+         System.out.println();
+      }
+      for (List<String> row : rows) {
+         for (String value : row)
+            System.out.print(value + "\t");
+         System.out.println();
+      }
+   }//end
    
    public static String itemExists(Cafe esql){
       try{
          System.out.print("\tEnter item name: ");
          String name = in.readLine();
 
-         String query = String.format("SELECT * FROM Menu WHERE itemName = '%s'", name);
-         int numOfItem = esql.executeQuery(query);
-	 if (numOfItem > 0)
+	 if (esql.withStore(store -> store.menuHas(name)))
 		return name;
          return null;
       }catch(Exception e){
@@ -513,7 +1647,7 @@ public class Cafe {
          System.out.print("\tEnter item name: ");
          String name = in.readLine();
 
-         String query = String.format("SELECT * FROM ItemStatus WHERE itemName = '%s' AND orderid = '%s", name, orderid);
+         String query = String.format("SELECT * FROM ItemStatus WHERE itemName = '%s' AND orderid = '%s'", name, orderid);
          int numOfItem = esql.executeQuery(query);
 	 if (numOfItem > 0)
 		return name;
@@ -523,40 +1657,194 @@ public class Cafe {
          return null;
       }
    }//end
-   
-   public static Integer AddOrder(Cafe esql){
-      // Your code goes here.
-      // ...
-      try {
-         List<String> orderItems = new ArrayList<String>();
-         List<String> comments = new ArrayList<String>();
-         while(true){
-            String item = itemExists(esql);
-            orderItems.add(item);
+
+   // ItemStatus.comments is char(130)
+   private static final int MAX_COMMENTS = 130;
+
+   /*
+    * Appends a comment to the comments of an item, cut to what the column
+    * holds. The database appends the same way when an item is ordered again.
+    **/
+   public static String appendComment(String comments, String comment){
+      String merged = comments.isEmpty() ? comment : comment.isEmpty() ? comments : comments + "; " + comment;
+      if (merged.length() > MAX_COMMENTS) {
+         System.out.println("Comments are limited to " + MAX_COMMENTS + " characters, the rest was cut.");
+         merged = merged.substring(0, MAX_COMMENTS);
+      }
+      return merged;
+   }//end
+
+   /*
+    * Reads a quantity of at least 1, empty input means 1. Asks again until
+    * the input is valid.
+    **/
+   public static int readQuantity(String prompt) throws java.io.IOException {
+      while(true){
+         System.out.print(prompt);
+         String amount = in.readLine().trim();
+         try {
+            int quantity = amount.isEmpty() ? 1 : Integer.parseInt(amount);
+            if (quantity >= 1)
+               return quantity;
+         }catch (NumberFormatException e) {
+            // asked again below
+         }
+         System.out.println("Please enter a whole number of at least 1.");
+      }
+   }//end
+
+   /*
+    * Reads the items of an order from the keyboard. Entering the same item
+    * again adds to its quantity and appends to its comments, so every item
+    * ends up as a single ItemStatus row. Comments are kept as typed, they
+    * are escaped where they are put into SQL.
+    **/
+   public static void readOrderItems(Cafe esql, Map<String, Integer> quantities, Map<String, String> comments) throws java.io.IOException {
+      while(true){
+         String item = itemExists(esql);
+         if (item == null) {
+            System.out.println("No such item on the menu.");
+         }
+         else {
+            int quantity = readQuantity("\tQuantity [1]: ");
+            quantities.merge(item, quantity, Integer::sum);
+
             System.out.print("Any additional comments? [y/n] ");
-            String temp = in.readLine();
-            if(temp == "y" || temp == "Y") {
+            if(in.readLine().equalsIgnoreCase("y")) {
                System.out.println("Enter comments: ");
-               comments.add(in.readLine());
-               
+               String comment = in.readLine().trim();
+               comments.put(item, appendComment(comments.getOrDefault(item, ""), comment));
             }
             else {
-               comments.add("");
+               comments.putIfAbsent(item, "");
             }
-            
-            System.out.print("\tAdd another item? [y/n] ");
-            String response = in.readLine();
-            if(response != "y" && response != "Y")
-               break;
+         }
+
+         System.out.print("\tAdd another item? [y/n] ");
+         if(!in.readLine().equalsIgnoreCase("y"))
+            break;
+      }
+   }//end
+
+   /*
+    * Reads the items, and how many of each, to take off an order
+    **/
+   public static void readRemovedItems(Cafe esql, String orderid, Map<String, Integer> quantities) throws java.io.IOException {
+      while(true){
+         String item = itemInOrder(esql, orderid);
+         if (item == null) {
+            System.out.println("That item is not part of the order.");
+         }
+         else {
+            quantities.merge(item, readQuantity("\tHow many to remove [1]: "), Integer::sum);
+         }
+         System.out.print("\tRemove another item? [y/n] ");
+         if(!in.readLine().equalsIgnoreCase("y"))
+            break;
+      }
+   }//end
+
+   // (itemName, quantity) rows for a VALUES list
+   private static String quantityValues(Map<String, Integer> quantities){
+      StringBuilder values = new StringBuilder();
+      for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+         if (values.length() > 0)
+            values.append(", ");
+         values.append(String.format("('%s', %d)", e.getKey(), e.getValue()));
+      }
+      return values.toString();
+   }//end
+
+   /*
+    * Prices a set of items as price * quantity in a single query
+    **/
+   public static double orderItemsTotal(Cafe esql, Map<String, Integer> quantities) throws SQLException {
+      String query = String.format("SELECT COALESCE(SUM(M.price * Q.quantity), 0) FROM Menu M, (VALUES %s) AS Q(itemName, quantity) WHERE M.itemName = Q.itemName", quantityValues(quantities));
+      return esql.executeQueryAndReturnTable(query).getDouble(0, 0);
+   }//end
+
+   /*
+    * Adds items to an order with one statement. Items already in the order
+    * get their quantity raised instead of a second row.
+    **/
+   public static void insertOrderItems(Cafe esql, String orderid, Map<String, Integer> quantities, Map<String, String> comments, Timestamp placedAt) throws SQLException {
+      esql.executeUpdate(orderItemsInsert(orderid, quantities, comments, placedAt));
+   }//end
+
+   /*
+    * Builds the statement used by insertOrderItems
+    **/
+   public static String orderItemsInsert(String orderid, Map<String, Integer> quantities, Map<String, String> comments, Timestamp placedAt){
+      StringBuilder rows = new StringBuilder();
+      for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+         if (rows.length() > 0)
+            rows.append(", ");
+         String comment = comments.getOrDefault(e.getKey(), "").replace("'", "''");
+         rows.append(String.format("('%s','%s','%s','%s','%s',%d)", orderid, e.getKey(), placedAt, "incomplete", comment, e.getValue()));
+      }
+      // comments of an item ordered again are appended like appendComment does
+      String query = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, quantity) VALUES %s " +
+                                   "ON CONFLICT (orderid, itemName) DO UPDATE SET quantity = ItemStatus.quantity + EXCLUDED.quantity, lastUpdated = EXCLUDED.lastUpdated, " +
+                                   "comments = CASE WHEN trim(EXCLUDED.comments) = '' THEN ItemStatus.comments " +
+                                   "WHEN trim(COALESCE(ItemStatus.comments, '')) = '' THEN EXCLUDED.comments " +
+                                   "ELSE left(rtrim(ItemStatus.comments) || '; ' || rtrim(EXCLUDED.comments), %d) END", rows, MAX_COMMENTS);
+      return query;
+   }//end
+
+   /*
+    * Recomputes the total of an order from its items as price * quantity
+    **/
+   public static void updateOrderTotal(Cafe esql, String orderid) throws SQLException {
+      esql.executeUpdate(orderTotalUpdate(orderid));
+   }//end
+
+   /*
+    * Builds the statement used by updateOrderTotal
+    **/
+   public static String orderTotalUpdate(String orderid){
+      return String.format("UPDATE Orders SET total = (SELECT COALESCE(SUM(M.price * I.quantity), 0) FROM ItemStatus I, Menu M WHERE I.orderid = Orders.orderid AND I.itemName = M.itemName) WHERE orderid = '%s'", orderid);
+   }//end
+
+   /*
+    * Adds items to an existing order and updates its total, both in one
+    * round trip that the server runs as one transaction
+    **/
+   public static void addOrderItems(Cafe esql, String orderid, Map<String, Integer> quantities, Map<String, String> comments) throws SQLException {
+      if (quantities.isEmpty())
+         return;
+      Timestamp addedAt = new Timestamp(System.currentTimeMillis());
+      esql.executeUpdate(orderItemsInsert(orderid, quantities, comments, addedAt) + ";\n" + orderTotalUpdate(orderid));
+   }//end
+
+   /*
+    * Takes items off an order by lowering their quantity, rows only go away
+    * once nothing of the item is left, then updates the order total. Rows
+    * that would drop to 0 are deleted first, quantity has to stay positive.
+    * The three statements go to the server in one round trip, which runs
+    * them as one transaction, so quantities and total change together.
+    **/
+   public static void removeOrderItems(Cafe esql, String orderid, Map<String, Integer> quantities) throws SQLException {
+      if (quantities.isEmpty())
+         return;
+      String query = String.format("DELETE FROM ItemStatus USING (VALUES %s) AS Q(itemName, quantity) WHERE ItemStatus.orderid = '%s' AND ItemStatus.itemName = Q.itemName AND ItemStatus.quantity <= Q.quantity", quantityValues(quantities), orderid);
+      String query2 = String.format("UPDATE ItemStatus SET quantity = ItemStatus.quantity - Q.quantity FROM (VALUES %s) AS Q(itemName, quantity) WHERE ItemStatus.orderid = '%s' AND ItemStatus.itemName = Q.itemName", quantityValues(quantities), orderid);
+      esql.executeUpdate(query + ";\n" + query2 + ";\n" + orderTotalUpdate(orderid));
+   }//end
+   
+   public static Integer AddOrder(Cafe esql){
+      // Your code goes here.
+      // ...
+      try {
+         Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+         Map<String, String> comments = new LinkedHashMap<String, String>();
+         readOrderItems(esql, quantities, comments);
+         if (quantities.isEmpty()) {
+            System.out.println("Nothing was ordered.");
+            return null;
          }
          
-         double total = 0;
          //get the total
-         for(int i = 0; i < orderItems.size(); ++i){
-            String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", orderItems.get(i));
-            List<List<String>> tempTup = esql.executeQueryAndReturnResult(query);
-            total += Double.parseDouble(tempTup.get(0).get(0));
-         }
+         double total = esql.withStore(store -> store.orderTotal(quantities));
          
          System.out.print("\tWill you be paying your total of " + total + " at this time? [y/n]");
          String response = in.readLine();
@@ -567,24 +1855,16 @@ public class Cafe {
          }
          
          Timestamp placedAt = new Timestamp(System.currentTimeMillis());
-         
-         String query = String.format("INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (DEFAULT,'%s','%s','%s','%s')", esql.authorisedUser, paid, placedAt, total);
-         
-         esql.executeUpdate(query);
-         System.out.print ("Order successfully added! OrderID: ");
-         //get order id 
-         String query2 = String.format("SELECT MAX(orderid) FROM Orders");
-         List<List<String>> tempTup = esql.executeQueryAndReturnResult(query2);
-         String orderid = tempTup.get(0).get(0);
-         System.out.println(orderid);
-         //fill itemStatus with each item in the order
-         String status = "incomplete";
-         for(int i = 0; i < orderItems.size(); ++i){
-            String query3 = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ('%s','%s','%s','%s','%s')", orderid, orderItems.get(i), placedAt, status, comments.get(i));
-            esql.executeUpdate(query3); 
+         final boolean isPaid = paid;
+         int reserved = esql.reserveOrderId();
+         int orderid = esql.withStore(store -> store.placeOrder(reserved, authorisedUser, isPaid, placedAt, quantities, comments, total));
+         if (orderid < 0) {
+            System.out.println ("The order was taken offline as number " + (-orderid) + ", it gets its OrderID once the database is back");
+            return null;
          }
+         System.out.println ("Order successfully added! OrderID: " + orderid);
          
-         return Integer.parseInt(orderid);
+         return orderid;
       }
       
       catch(Exception e) {
@@ -632,53 +1912,15 @@ public class Cafe {
                case 4: // add items;
                   //check if the order has already been paid for
                   String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
-                  List<List<String>> paidTup = esql.executeQueryAndReturnResult(query);
-                  String canAdd = (tempTup.get(0).get(0));
-                  if(canAdd == "true") {
+                  if(esql.executeQueryAndReturnTable(query).getBoolean(0, 0)) {
                      System.out.println("You cannot add more items after your order has been paid. Please place a new order.");
                      break;
                   }
                   try {
-                     List<String> orderItems = new ArrayList<String>();
-                     List<String> comments = new ArrayList<String>();
-                     while(true){
-                        String item = itemExists(esql);
-                        orderItems.add(item);
-                        System.out.print("Any additional comments? [y/n] ");
-                        String temp = in.readLine();
-                        if(temp == "y" || temp == "Y") {
-                           System.out.println("Enter comments: ");
-                           comments.add(in.readLine());
-                           
-                        }
-                        else {
-                           comments.add("");
-                        }
-                        
-                        System.out.print("\tAdd another item? [y/n] ");
-                        String response = in.readLine();
-                        if(response != "y" && response != "Y")
-                           break;
-                     }
-                     
-                     double total = 0;
-                     //get the total
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", orderItems.get(i));
-                        List<List<String>> paidTup = esql.executeQueryAndReturnResult(query);
-                        total += Double.parseDouble(paidTup.get(0).get(0));
-                     }
-                     //update the order total
-                     String queryTotal = String.format("UPDATE Orders SET total = total + '%s' WHERE orderid = '%s'", total, inp);
-                     esql.executeUpdate(queryTotal);
-                  
-                     Timestamp placedAt = new Timestamp(System.currentTimeMillis());
-                     //fill itemStatus with each item in the order
-                     String status = "incomplete";
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query3 = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ('%s','%s','%s','%s','%s')", inp, orderItems.get(i), placedAt, status, comments.get(i));
-                        esql.executeUpdate(query3); 
-                     }
+                     Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+                     Map<String, String> comments = new LinkedHashMap<String, String>();
+                     readOrderItems(esql, quantities, comments);
+                     addOrderItems(esql, inp, quantities, comments);
                   }
                   catch(Exception e) {
                      System.err.println (e.getMessage ());
@@ -688,40 +1930,15 @@ public class Cafe {
                case 5: //remove items;
                   //check if the order has already been paid for
                   String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
-                  List<List<String>> paidTup = esql.executeQueryAndReturnResult(query);
-                  String canAdd = (paidTup.get(0).get(0));
-                  if(canAdd == "true") {
+                  if(esql.executeQueryAndReturnTable(query).getBoolean(0, 0)) {
                      System.out.println("Sorry, but you cannot remove items after your order has been paid.");
                      break;
                   }
                   
                   try {
-                     List<String> orderItems = new ArrayList<String>();
-                     while(true){
-                        String item = itemInOrder(esql, inp);
-                        orderItems.add(item);
-                        System.out.print("\tRemove another item? [y/n] ");
-                        String response = in.readLine();
-                        if(response != "y" && response != "Y")
-                           break;
-                     }
-                     
-                     double total = 0;
-                     //get the total
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", orderItems.get(i));
-                        List<List<String>> tempTup = esql.executeQueryAndReturnResult(query);
-                        total += Double.parseDouble(tempTup.get(0).get(0));
-                     }
-                     //update the order total
-                     String queryTotal = String.format("UPDATE Orders SET total = total - '%s' WHERE orderid = '%s'", total, inp);
-                     esql.executeUpdate(queryTotal);
-                  
-                     //remove from itemStatus the items to be remove
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query3 = String.format("DELETE FROM ItemStatus WHERE orderid = '%s' AND itemName = '%s'", inp, orderItems.at(i));
-                        esql.executeUpdate(query3); 
-                     }
+                     Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+                     readRemovedItems(esql, inp, quantities);
+                     removeOrderItems(esql, inp, quantities);
                   }
                   
                   catch(Exception e) {
@@ -742,6 +1959,8 @@ public class Cafe {
       // ...
       System.out.println ("Enter the orderid of the order you wish to update: ");
       String inp = in.readLine();
+      // the order lives on the shard of the customer who placed it
+      esql = esql.shardForOrder(inp);
 
       String query = String.format("SELECT * FROM Orders WHERE orderid = '%s'", inp);
       int numOfTuples = esql.executeQuery(query);
@@ -766,60 +1985,21 @@ public class Cafe {
                   esql.executeUpdate(query);
                   break;
                case 2:
-                  String query = String.format("UPDATE ItemStatus SET status = 'completed' WHERE orderid = '%s'", inp);
-                  esql.executeUpdate(query);
+                  esql.updateItemStatus(inp, null, "completed");
                   break;
                case 4: // add items;
                   //check if the order has already been paid for
                   String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
-                  List<List<String>> paidTup = esql.executeQueryAndReturnResult(query);
-                  String canAdd = (paidTup.get(0).get(0));
-                  if(canAdd == "true") {
+                  if(esql.executeQueryAndReturnTable(query).getBoolean(0, 0)) {
                      System.out.println("You cannot add more items after your order has been paid. Please place a new order.");
                      break;
                   }
                   
                   try {
-                     List<String> orderItems = new ArrayList<String>();
-                     List<String> comments = new ArrayList<String>();
-                     while(true){
-                        String item = itemExists(esql);
-                        orderItems.add(item);
-                        System.out.print("Any additional comments? [y/n] ");
-                        String temp = in.readLine();
-                        if(temp == "y" || temp == "Y") {
-                           System.out.println("Enter comments: ");
-                           comments.add(in.readLine());
-                           
-                        }
-                        else {
-                           comments.add("");
-                        }
-                        
-                        System.out.print("\tAdd another item? [y/n] ");
-                        String response = in.readLine();
-                        if(response != "y" && response != "Y")
-                           break;
-                     }
-                     
-                     double total = 0;
-                     //get the total
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", orderItems.get(i));
-                        List<List<String>> tempTup = esql.executeQueryAndReturnResult(query);
-                        total += Double.parseDouble(tempTup.get(0).get(0));
-                     }
-                     //update the order total
-                     String queryTotal = String.format("UPDATE Orders SET total = total + '%s' WHERE orderid = '%s'", total, inp);
-                     esql.executeUpdate(queryTotal);
-                  
-                     Timestamp placedAt = new Timestamp(System.currentTimeMillis());
-                     //fill itemStatus with each item in the order
-                     String status = "incomplete";
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query3 = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ('%s','%s','%s','%s','%s')", inp, orderItems.get(i), placedAt, status, comments.get(i));
-                        esql.executeUpdate(query3); 
-                     }
+                     Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+                     Map<String, String> comments = new LinkedHashMap<String, String>();
+                     readOrderItems(esql, quantities, comments);
+                     addOrderItems(esql, inp, quantities, comments);
                   }
                   
                   catch(Exception e) {
@@ -831,40 +2011,15 @@ public class Cafe {
                case 5: //remove items;
                   //check if the order has already been paid for
                   String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
-                  List<List<String>> paidTup = esql.executeQueryAndReturnResult(query);
-                  String canAdd = (paidTup.get(0).get(0));
-                  if(canAdd == "true") {
+                  if(esql.executeQueryAndReturnTable(query).getBoolean(0, 0)) {
                      System.out.println("Sorry, but you cannot remove items after your order has been paid.");
                      break;
                   }
                   
                   try {
-                     List<String> orderItems = new ArrayList<String>();
-                     while(true){
-                        String item = itemInOrder(esql, inp);
-                        orderItems.add(item);
-                        System.out.print("\tRemove another item? [y/n] ");
-                        String response = in.readLine();
-                        if(response != "y" && response != "Y")
-                           break;
-                     }
-                     
-                     double total = 0;
-                     //get the total
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", orderItems.get(i));
-                        List<List<String>> tempTup = esql.executeQueryAndReturnResult(query);
-                        total += Double.parseDouble(tempTup.get(0).get(0));
-                     }
-                     //update the order total
-                     String queryTotal = String.format("UPDATE Orders SET total = total - '%s' WHERE orderid = '%s'", total, inp);
-                     esql.executeUpdate(queryTotal);
-                  
-                     //fill itemStatus with each item in the order
-                     for(int i = 0; i < orderItems.size(); ++i){
-                        String query3 = String.format("DELETE FROM ItemStatus WHERE orderid = '%s' AND itemName = '%s'", inp, orderItems.at(i));
-                        esql.executeUpdate(query3); 
-                     }
+                     Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+                     readRemovedItems(esql, inp, quantities);
+                     removeOrderItems(esql, inp, quantities);
                   }
                   
                   catch(Exception e) {
@@ -885,7 +2040,7 @@ public class Cafe {
       // Your code goes here.
       // ...
       String query = String.format("SELECT TOP(5) * FROM Orders WHERE login = '%s' ORDER BY orderid", esql.authorisedUser);
-      esql.executeQueryAndPrintResult(query);
+      esql.executeReadQueryAndPrintResult(query);
       // ...
    }//end
 
@@ -953,25 +2108,25 @@ public class Cafe {
                System.out.print("Enter new password: ");
                String newpass = in.readLine();
                String query = String.format("UPDATE Users SET password = '%s' WHERE login = '%s'", newpass, userlogin);
-               esql.executeUpdate(query);
+               esql.shardFor(userlogin).executeUpdate(query);
                break;
            case 2: 
                System.out.println("Enter new favorite items");
                String newItems = in.readLine();
                String query = String.format("UPDATE Users SET favItems = '%s' WHERE login = '%s'", newItems, userlogin);
-               esql.executeUpdate(query);
+               esql.shardFor(userlogin).executeUpdate(query);
                break;
            case 3: 
                System.out.print("Enter new phone number: ");
                String newnum = in.readLine();
                String query = String.format("UPDATE Users SET phoneNum = '%s' WHERE login = '%s'", newnum, userlogin);
-               esql.executeUpdate(query);
+               esql.shardFor(userlogin).executeUpdate(query);
                break;
            case 4:
                System.out.print("Enter new Type for the User: ");
                String newtype = in.readLine();
                String query = String.format("UPDATE Users SET type = '%s' WHERE login = '%s'", newtype, userlogin);
-               esql.executeUpdate(query);
+               esql.shardFor(userlogin).executeUpdate(query);
                break;
            case 9: updatingInfo = false; break;
            default : System.out.println("Unrecognized choice!"); break;
@@ -980,6 +2135,32 @@ public class Cafe {
       // ...
    }//end
 
+   /*
+    * Creates or updates users in bulk from a file in the users.csv format,
+    * each user going to their shard
+    **/
+   public static void ImportUsers(Cafe esql){
+      UserImport importer = null;
+      try{
+         System.out.print("\tEnter the path of the users file: ");
+         String file = in.readLine();
+         Cafe[] shards = esql.allShards();
+         String[] urls = new String[shards.length];
+         AdmissionControl[] admission = new AdmissionControl[shards.length];
+         for (int i = 0; i < shards.length; ++i) {
+            urls[i] = shards[i]._url;
+            admission[i] = shards[i].admission();
+         }
+         importer = new UserImport(urls, admission);
+         importer.run(file.trim());
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (importer != null)
+            importer.cleanup();
+      }
+   }//end ImportUsers
+
    public static void UpdateMenu(Cafe esql){
       // Your code goes here.
       boolean updatingMenu = true;
@@ -989,6 +2170,7 @@ public class Cafe {
          System.out.println("1. Add Item");
          System.out.println("2. Delete Item");
          System.out.println("3. Update Item");
+         System.out.println("4. Reprice Items");
          System.out.println(".........................");
          System.out.println("9. Cancel");
          switch (readChoice()){
@@ -1003,12 +2185,12 @@ public class Cafe {
                System.out.println("Enter Item Price: ");
                String price = in.readLine();
                String query = String.format("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s','%s','%s','%s','%s')", itemName, type, price, description, imageURL);
-               esql.executeUpdate(query); 
+               esql.executeUpdateAllShards(query); 
                break;
             case 2: //delete item
                String name = itemExists(esql);
                String query = String.format("DELETE FROM Menu WHERE itemName = '%s'", name);
-               esql.executeUpdate(query);
+               esql.executeUpdateAllShards(query);
                break;
             case 3: //update item
                String itemName = itemExists(esql);
@@ -1026,31 +2208,31 @@ public class Cafe {
                   case 1: 
                      String newName = itemExists(esql);
                      String query = String.format("UPDATE Menu SET itemName = '%s' WHERE itemName = '%s'", newName, itemName);
-                     esql.executeUpdate(query);
+                     esql.executeUpdateAllShards(query);
                      break;
                   case 2: 
                      System.out.println("Enter New Type");
                      String newType = in.readLine();
                      String query = String.format("UPDATE Menu SET type = '%s' WHERE itemName = '%s'", newType, itemName);
-                     esql.executeUpdate(query);
+                     esql.executeUpdateAllShards(query);
                      break;
                   case 3: 
                      System.out.print("Enter New Price: ");
                      String newPrice = in.readLine();
                      String query = String.format("UPDATE Menu SET price = '%s' WHERE itemName = '%s'", newPrice, itemName);
-                     esql.executeUpdate(query);
+                     esql.executeUpdateAllShards(query);
                      break;
                   case 4:
                      System.out.print("Enter New Description: ");
                      String newDesc = in.readLine();
                      String query = String.format("UPDATE Menu SET description = '%s' WHERE itemName = '%s'", newDesc, itemName);
-                     esql.executeUpdate(query);
+                     esql.executeUpdateAllShards(query);
                      break;
                   case 5: 
                      System.out.print("Enter New ImageURL: ");
                      String newURL = in.readLine();
                      String query = String.format("UPDATE Menu SET imageURL = '%s' WHERE itemName = '%s'", newURL, itemName);
-                     esql.executeUpdate(query);
+                     esql.executeUpdateAllShards(query);
                   default: 
                      System.out.println("Unrecognized choice!"); 
                      break;
@@ -1059,6 +2241,10 @@ public class Cafe {
                
                break; // case 3 break 
                
+            case 4:
+               RepriceMenu(esql);
+               break;
+
             case 9: 
                updatingMenu = false; 
                break;
@@ -1071,24 +2257,202 @@ public class Cafe {
       // ...
    }//end
 
+   /*
+    * Changes the price of one item, of a type or of every item, and
+    * recomputes the totals of the unpaid orders holding a changed item. Both
+    * happen in one statement per shard, the order totals are computed with
+    * the new prices joined over ItemStatus, so no order keeps a total of the
+    * old prices and no order is read by the client.
+    **/
+   public static void RepriceMenu(Cafe esql){
+      try{
+         System.out.println("Reprice Items");
+         System.out.println("---------");
+         System.out.println("1. One item");
+         System.out.println("2. Every item of a type");
+         System.out.println("3. Every item");
+         String where;
+         switch (readChoice()){
+            case 1:
+               String item = itemExists(esql);
+               if (item == null) {
+                  System.out.println("No such item on the menu.");
+                  return;
+               }
+               where = String.format("itemName = '%s'", item.replace("'", "''"));
+               break;
+            case 2:
+               System.out.print("\tEnter item type: ");
+               where = String.format("type = '%s'", in.readLine().trim().replace("'", "''"));
+               break;
+            case 3:
+               where = "TRUE";
+               break;
+            default:
+               System.out.println("Unrecognized choice!");
+               return;
+         }
+
+         System.out.print("\tEnter the new price, or a change in percent like +10% or -5%: ");
+         String change = in.readLine().trim();
+         BigDecimal factor = null, newPrice = null;
+         if (change.endsWith("%")) {
+            factor = BigDecimal.ONE.add(new BigDecimal(change.substring(0, change.length() - 1)).movePointLeft(2));
+            if (factor.signum() <= 0) {
+               System.out.println("Prices cannot drop by 100% or more.");
+               return;
+            }
+         }
+         else {
+            newPrice = new BigDecimal(change);
+            if (newPrice.signum() < 0) {
+               System.out.println("Prices cannot be negative.");
+               return;
+            }
+         }
+
+         // the new prices are worked out once from the menu as it is now, so
+         // every shard sets the same absolute prices and running the update
+         // again on a shard that already has them changes nothing
+         StringBuilder prices = new StringBuilder();
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format("SELECT itemName, price FROM Menu WHERE %s", where))) {
+            BigDecimal price = newPrice != null ? newPrice
+                             : new BigDecimal(row.get(1).trim()).multiply(factor).setScale(2, RoundingMode.HALF_UP);
+            prices.append(prices.length() > 0 ? ", " : "")
+                  .append(String.format("('%s', CAST(%s AS real))", row.get(0).trim().replace("'", "''"), price.toPlainString()));
+         }
+         if (prices.length() == 0) {
+            System.out.println("No such items on the menu.");
+            return;
+         }
+
+         // every sub-statement sees Menu as it was before the update, so the
+         // new price of a repriced item comes from the RETURNING rows
+         String query = String.format(
+            "WITH repriced AS (UPDATE Menu SET price = P.price FROM (VALUES %s) AS P(itemName, price) " +
+                              "WHERE Menu.itemName = P.itemName RETURNING Menu.itemName, Menu.price), " +
+            "affected AS (SELECT DISTINCT I.orderid FROM ItemStatus I, repriced R, Orders O " +
+                         "WHERE I.itemName = R.itemName AND O.orderid = I.orderid AND O.paid IS NOT TRUE) " +
+            "UPDATE Orders SET total = T.total FROM (" +
+               "SELECT I.orderid, SUM(COALESCE(R.price, M.price) * I.quantity) AS total " +
+               "FROM ItemStatus I JOIN affected A ON A.orderid = I.orderid JOIN Menu M ON M.itemName = I.itemName " +
+               "LEFT JOIN repriced R ON R.itemName = I.itemName GROUP BY I.orderid) T " +
+            "WHERE Orders.orderid = T.orderid", prices);
+         int orders = esql.executeUpdateAllShards(query);
+         System.out.println("Prices updated, " + orders + " unpaid order total(s) recomputed");
+      }catch(NumberFormatException e){
+         System.out.println("Enter a price like 4.50 or a percentage like +10%.");
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end
+
    public static void ViewOrderStatus(Cafe esql){
       // Your code goes here.
       // ...
-      String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
-      System.out.print("Order number " + inp + " paid? ");
-      esql.executeQueryAndPrintResult(query);
-      String query2 = String.format("SELECT * FROM ItemStatus WHERE orderid = '%s'", inp);
-      esql.executeQueryAndPrintResult(query2);
+      try{
+         System.out.print("\tEnter order id: ");
+         String inp = in.readLine();
+         Cafe shard = esql.shardForOrder(inp);
+
+         // the paid flag and the items are independent, fetch them together
+         String query = String.format("SELECT paid FROM Orders WHERE orderid = '%s'", inp);
+         String query2 = String.format("SELECT * FROM ItemStatus WHERE orderid = '%s'", inp);
+         CompletableFuture<ResultTable> paid = shard.executeReadQueryAndReturnTableAsync(query);
+         CompletableFuture<ResultTable> items = shard.executeReadQueryAndReturnTableAsync(query2);
+
+         ResultTable paidTable = paid.join();
+         if (paidTable.rowCount() == 0) {
+            System.out.println("Error, invalid order id");
+            return;
+         }
+         System.out.println("Order number " + inp + " paid? " + (paidTable.getBoolean(0, 0) ? "yes" : "no"));
+         items.join().print();
+
+         long[] eta = shard.estimateReadyTime(inp);
+         if (eta != null)
+            System.out.println("Estimated ready in about " + minutes(eta[0]) + " (at most " + minutes(eta[1]) + ")");
+      }catch(CompletionException e){
+         System.err.println (e.getCause().getMessage ());
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
       // ...
    }//end
 
+   /*
+    * Formats a wait in seconds for the customer
+    **/
+   public static String minutes(long seconds){
+      if (seconds < 60)
+         return "1 min";
+      return ((seconds + 59) / 60) + " min";
+   }//end minutes
+
+   /*
+    * Returns the popularity tracker after catching up on the orders placed
+    * or added to on every shard since the last call, by any register; the
+    * first call counts every past order in one pass. The catch up runs as a
+    * report on each shard.
+    **/
+   public static synchronized PopularityTracker popularity(Cafe esql) throws SQLException {
+      if (popularity == null) {
+         System.out.println("Counting past orders...");
+         popularity = new PopularityTracker();
+      }
+      for (Cafe shard : esql.allShards()) {
+         long admitted = shard.admitReport();
+         long started = Operation.databaseStart();
+         try {
+            popularity.catchUp(shard._url, shard._sessionLimits);
+         }catch (SQLException | RuntimeException e) {
+            // changes may have been missed, the next call counts from scratch
+            popularity.close();
+            popularity = null;
+            throw e;
+         }finally {
+            Operation.databaseEnd(started);
+            shard.releaseReport(admitted);
+         }
+      }
+      return popularity;
+   }//end popularity
+
+   /*
+    * Shows what sells right now and of all time, and what a customer
+    * usually orders
+    **/
+   public static void PopularItems(Cafe esql){
+      try{
+         PopularityTracker tracker = popularity(esql);
+         System.out.println("Popular in the last " + tracker.liveMinutes() + " minutes:");
+         for (PopularityTracker.Count c : tracker.topNow(10))
+            System.out.println("\t" + c.item + "\t" + c.count);
+         System.out.println("Popular of all time:");
+         for (PopularityTracker.Count c : tracker.topAllTime(10))
+            System.out.println("\t" + c.item + "\t" + c.count);
+
+         System.out.print("\tEnter a user login to see their usual items (empty to skip): ");
+         String login = in.readLine();
+         if (login != null && !login.trim().isEmpty()) {
+            List<PopularityTracker.Count> usual = tracker.topForUser(login, 5);
+            if (usual.isEmpty())
+               System.out.println("No orders from " + login);
+            for (PopularityTracker.Count c : usual)
+               System.out.println("\t" + c.item + "\t" + c.count);
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end PopularItems
+
    public static void ViewCurrentOrder(Cafe esql){
       // Your code goes here.
       // ...
       Timestamp now = new Timestamp(System.currentTimeMillis());
       orderStatus = "false";
       String query = String.format("SELECT * FROM Orders WHERE timeStampRecieved > now - 8.64*10^7 AND paid = '%s' ORDER BY orderid", orderStatus);
-      esql.executeQueryAndPrintResult(query);
+      esql.executeQueryAndPrintResultAllShards(query, 0);
       // ...
    }//end
    
@@ -0,0 +1,276 @@
+/*
+ * Shard maintenance tool
+ * ======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+
+
+/**
+ * Command line tool for a set of Cafe shards.
+ *
+ *   sequences  gives every shard a disjoint range of order ids
+ *   rebalance  moves every user, with their orders and item statuses, to the
+ *              shard picked by CafeShards.shardOf
+ *
+ * Shards are given as dbname@port (or dbname@host:port) in shard number
+ * order, the same order used by the Cafe client.
+ */
+public class CafeShardTool {
+
+   // size of the order id range reserved for each shard, orderid is a
+   // 32 bit serial so this leaves room for 21 shards
+   private static final long ORDER_ID_RANGE = 100000000L;
+
+   private final Connection[] _shards;
+
+   public CafeShardTool (String[] endpoints) throws SQLException {
+      _shards = new Connection[endpoints.length];
+      for (int i = 0; i < endpoints.length; ++i)
+         _shards[i] = DriverManager.getConnection(url(endpoints[i]));
+   }//end CafeShardTool
+
+   /**
+    * Splits a dbname@port or dbname@host:port endpoint, the one format of
+    * shard endpoints for this tool and for -Dcafe.shards
+    *
+    * @param endpoint the shard endpoint
+    * @return the database name and the host:port or port
+    * @throws IllegalArgumentException when the endpoint has no '@'
+    */
+   public static String[] endpoint (String endpoint) {
+      int at = endpoint.lastIndexOf('@');
+      if (at <= 0 || at == endpoint.length() - 1)
+         throw new IllegalArgumentException("Expected dbname@port or dbname@host:port, got " + endpoint);
+      return new String[] { endpoint.substring(0, at), endpoint.substring(at + 1) };
+   }//end endpoint
+
+   /**
+    * Builds the connection URL of a dbname@port or dbname@host:port endpoint
+    *
+    * @param endpoint the shard endpoint
+    * @return the JDBC URL
+    */
+   public static String url (String endpoint) {
+      String[] parts = endpoint(endpoint);
+      return url(parts[0], parts[1]);
+   }//end url
+
+   /**
+    * Builds the connection URL of a database
+    *
+    * @param dbname the database name
+    * @param hostport host:port, or a port on this machine
+    * @return the JDBC URL
+    */
+   public static String url (String dbname, String hostport) {
+      if (!hostport.contains(":"))
+         hostport = "127.0.0.1:" + hostport;
+      return "jdbc:postgresql://" + hostport + "/" + dbname;
+   }//end url
+
+   /**
+    * Moves shard i's order id sequence into [i * range, (i + 1) * range),
+    * keeping it above any id already used on that shard. The sequence gets
+    * the end of the range as its MAXVALUE, which depends on its increment,
+    * so run this again after changing it (sql/src/order_id_blocks.sql).
+    */
+   public void initSequences () throws SQLException {
+      if (_shards.length * ORDER_ID_RANGE > Integer.MAX_VALUE)
+         throw new SQLException("At most " + (Integer.MAX_VALUE / ORDER_ID_RANGE) + " shards fit the 32 bit order ids");
+      for (int i = 0; i < _shards.length; ++i) {
+         Statement stmt = _shards[i].createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(orderid), 0) FROM Orders");
+         rs.next();
+         long next = Math.max(rs.getLong(1) + 1, i * ORDER_ID_RANGE + 1);
+         rs = stmt.executeQuery("SELECT increment_by FROM pg_sequences WHERE sequencename = 'orders_orderid_seq'");
+         long increment = rs.next() ? rs.getLong(1) : 1;
+         // the last value handed out still has room for a whole block of
+         // increment ids, past it nextval fails instead of entering the
+         // range of the next shard
+         long max = (i + 1) * ORDER_ID_RANGE - increment;
+         if (next > max)
+            throw new SQLException("Shard " + i + " has used up its order id range");
+         stmt.execute(String.format("ALTER SEQUENCE orders_orderid_seq MAXVALUE %d RESTART WITH %d", max, next));
+         stmt.close();
+         System.out.println("Shard " + i + ": next order id " + next + ", last " + ((i + 1) * ORDER_ID_RANGE - 1));
+      }
+   }//end initSequences
+
+   /**
+    * Moves every misplaced user to their shard. Each user is copied to the
+    * target in one transaction and only then removed from the source. A row
+    * already on the target is accepted only when it is identical, i.e. left
+    * by an interrupted run, so a run can simply be restarted; any other
+    * conflict stops the rebalance before anything is deleted.
+    */
+   public void rebalance () throws SQLException {
+      int moved = 0;
+      for (int source = 0; source < _shards.length; ++source) {
+         List<String> logins = new ArrayList<String>();
+         Statement stmt = _shards[source].createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT login FROM Users");
+         while (rs.next())
+            logins.add(rs.getString(1));
+         stmt.close();
+
+         for (String login : logins) {
+            int target = CafeShards.shardOf(login, _shards.length);
+            if (target == source)
+               continue;
+            moveUser(login, _shards[source], _shards[target]);
+            ++moved;
+            if (moved % 1000 == 0)
+               System.out.println(moved + " users moved");
+         }
+      }
+      System.out.println("Rebalance done, " + moved + " users moved");
+   }//end rebalance
+
+   // copies one user with all their rows, then deletes from the source the
+   // rows now on the target. The source rows stay locked until then, so
+   // nothing copied can change or get new items before it is deleted.
+   private void moveUser (String login, Connection from, Connection to) throws SQLException {
+      from.setAutoCommit(false);
+      to.setAutoCommit(false);
+      try {
+         copy(from, to, "SELECT * FROM Users WHERE login = ? FOR UPDATE", "Users", "login", login);
+         List<Object> orders = copy(from, to, "SELECT * FROM Orders WHERE login = ? FOR UPDATE", "Orders", "orderid", login);
+         copy(from, to, "SELECT I.* FROM ItemStatus I, Orders O WHERE I.orderid = O.orderid AND O.login = ? FOR UPDATE OF I",
+              "ItemStatus", "orderid, itemName", login);
+         to.commit();
+
+         // ItemStatus rows go with their order through ON DELETE CASCADE,
+         // orders placed on the source meanwhile keep their user until the
+         // next run moves them
+         PreparedStatement del = from.prepareStatement("DELETE FROM Orders WHERE orderid = ANY (?)");
+         Array ids = from.createArrayOf("integer", orders.toArray());
+         del.setArray(1, ids);
+         del.executeUpdate();
+         del.close();
+         del = from.prepareStatement("DELETE FROM Users WHERE login = ? AND NOT EXISTS (SELECT 1 FROM Orders WHERE login = ?)");
+         del.setString(1, login);
+         del.setString(2, login);
+         del.executeUpdate();
+         del.close();
+         from.commit();
+      }catch (SQLException e) {
+         // after the target committed the source keeps its rows, which the
+         // next run finds identical on the target
+         to.rollback();
+         from.rollback();
+         throw e;
+      }finally {
+         to.setAutoCommit(true);
+         from.setAutoCommit(true);
+      }
+   }//end moveUser
+
+   /*
+    * Copies the rows of a query into the same table on another shard. Rows
+    * whose key already exists must be identical on the target.
+    *
+    * @return the values of the first key column of the copied rows
+    */
+   private List<Object> copy (Connection from, Connection to, String select, String table,
+                              String key, String login) throws SQLException {
+      PreparedStatement query = from.prepareStatement(select);
+      query.setString(1, login);
+      ResultSet rs = query.executeQuery();
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+
+      StringBuilder columns = new StringBuilder();
+      StringBuilder params = new StringBuilder();
+      StringBuilder same = new StringBuilder();
+      for (int i = 1; i <= numCol; ++i) {
+         columns.append(i > 1 ? ", " : "").append(rsmd.getColumnName(i));
+         params.append(i > 1 ? ", ?" : "?");
+         same.append(i > 1 ? " AND " : "").append(rsmd.getColumnName(i)).append(" IS NOT DISTINCT FROM ?");
+      }
+      PreparedStatement insert = to.prepareStatement(String.format(
+         "INSERT INTO %s (%s) VALUES (%s) ON CONFLICT (%s) DO NOTHING", table, columns, params, key));
+      List<Object[]> rows = new ArrayList<Object[]>();
+      List<Object> keys = new ArrayList<Object>();
+      while (rs.next()) {
+         Object[] row = new Object[numCol];
+         for (int i = 1; i <= numCol; ++i) {
+            row[i - 1] = rs.getObject(i);
+            insert.setObject(i, row[i - 1]);
+         }
+         rows.add(row);
+         keys.add(rs.getObject(key.split(",")[0].trim()));
+         insert.addBatch();
+      }
+      int[] inserted = insert.executeBatch();
+      insert.close();
+      query.close();
+
+      // a row that was not inserted collides with an existing key
+      PreparedStatement existing = to.prepareStatement(String.format("SELECT 1 FROM %s WHERE %s", table, same));
+      try {
+         for (int r = 0; r < rows.size(); ++r) {
+            if (inserted[r] > 0)
+               continue;
+            for (int i = 0; i < numCol; ++i)
+               existing.setObject(i + 1, rows.get(r)[i]);
+            if (!existing.executeQuery().next())
+               throw new SQLException(String.format("%s row with %s = %s of user %s already exists on the target with other values, user not moved",
+                                                    table, key, keys.get(r), login.trim()));
+         }
+      }finally {
+         existing.close();
+      }
+      return keys;
+   }//end copy
+
+   public void cleanup () {
+      for (Connection c : _shards) {
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end cleanup
+
+   public static void main (String[] args) {
+      if (args.length < 2 || !(args[0].equals("sequences") || args[0].equals("rebalance"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            CafeShardTool.class.getName () +
+            " sequences|rebalance <dbname>@<port> ...");
+         return;
+      }//end if
+
+      CafeShardTool tool = null;
+      try {
+         tool = new CafeShardTool(java.util.Arrays.copyOfRange(args, 1, args.length));
+         if (args[0].equals("sequences"))
+            tool.initSequences();
+         else
+            tool.rebalance();
+      }catch (SQLException e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (tool != null)
+            tool.cleanup();
+      }
+   }//end main
+
+}//end CafeShardTool
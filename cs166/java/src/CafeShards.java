@@ -0,0 +1,204 @@
+/*
+ * Login-hash sharding over several Cafe databases
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Groups the Cafe connections of N database shards. Users live on the shard
+ * picked by a hash of their login, and their Orders and ItemStatus rows are
+ * stored next to them. Menu is replicated to every shard.
+ *
+ * Order ids have to be unique across shards, so every shard's
+ * orders_orderid_seq must hand out a disjoint range (see CafeShardTool).
+ */
+public class CafeShards {
+
+   private final Cafe[] _shards;
+   private final ExecutorService _fanout;
+
+   /**
+    * Creates a shard group over already connected databases
+    *
+    * @param shards the shards, in shard number order
+    */
+   public CafeShards (Cafe[] shards) {
+      this._shards = shards;
+      this._fanout = Executors.newFixedThreadPool(shards.length, r -> {
+         Thread t = new Thread(r, "shard-fanout");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end CafeShards
+
+   /**
+    * Computes the shard of a login. The hash only depends on the login text,
+    * so it is the same in every process and across restarts.
+    *
+    * @param login the user login, trailing blanks of char(50) are ignored
+    * @param numShards number of shards
+    * @return the shard number
+    */
+   public static int shardOf (String login, int numShards) {
+      CRC32 crc = new CRC32();
+      crc.update(login.trim().getBytes(StandardCharsets.UTF_8));
+      return (int) (crc.getValue() % numShards);
+   }//end shardOf
+
+   /**
+    * @return the number of shards
+    */
+   public int size () {
+      return _shards.length;
+   }//end size
+
+   /**
+    * @param login the user login
+    * @return the shard holding the user and their orders
+    */
+   public Cafe forLogin (String login) {
+      return _shards[shardOf(login, _shards.length)];
+   }//end forLogin
+
+   /**
+    * Finds the shard holding an order by probing every shard in parallel
+    *
+    * @param orderid the order to look for
+    * @return the shard holding the order, or null when no shard has it
+    * @throws java.sql.SQLException when a shard could not be queried
+    */
+   public Cafe forOrder (String orderid) throws SQLException {
+      String query = String.format("SELECT orderid FROM Orders WHERE orderid = '%s'", orderid);
+      List<List<List<String>>> found = fanOut(query);
+      for (int i = 0; i < found.size(); ++i) {
+         if (!found.get(i).isEmpty())
+            return _shards[i];
+      }
+      return null;
+   }//end forOrder
+
+   /**
+    * Applies an update to every shard, used for the replicated Menu table.
+    * Shards are updated one after the other and the first failure stops the
+    * update, so a failed update can simply be repeated.
+    *
+    * @param sql the update to apply
+    * @return the number of rows changed over every shard
+    * @throws java.sql.SQLException when a shard failed the update
+    */
+   public int executeUpdateAll (String sql) throws SQLException {
+      int rows = 0;
+      for (Cafe shard : _shards)
+         rows += shard.executeUpdate(sql);
+      return rows;
+   }//end executeUpdateAll
+
+   /**
+    * Runs a query on every shard in parallel and merges the results
+    *
+    * @param query the input query string
+    * @param sortColumn numeric column the merged rows are ordered by, or -1
+    * @return the merged rows of every shard
+    * @throws java.sql.SQLException when a shard failed the query
+    */
+   public List<List<String>> executeQueryAll (String query, final int sortColumn) throws SQLException {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for (List<List<String>> rows : fanOut(query))
+         merged.addAll(rows);
+      if (sortColumn >= 0) {
+         // every shard result is already sorted, so this is a cheap run merge
+         Collections.sort(merged, new Comparator<List<String>>() {
+            public int compare (List<String> a, List<String> b) {
+               return Double.compare(Double.parseDouble(a.get(sortColumn)),
+                                     Double.parseDouble(b.get(sortColumn)));
+            }
+         });
+      }
+      return merged;
+   }//end executeQueryAll
+
+   /**
+    * Runs a query on every shard in parallel and prints the merged rows to
+    * standard out.
+    *
+    * @param query the input query string
+    * @param sortColumn numeric column the merged rows are ordered by, or -1
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when a shard failed the query
+    */
+   public int executeQueryAndPrintResultAll (String query, int sortColumn) throws SQLException {
+      List<List<String>> rows = executeQueryAll(query, sortColumn);
+      for (List<String> row : rows) {
+         for (String value : row)
+            System.out.print(value + "\t");
+         System.out.println();
+      }
+      return rows.size();
+   }//end executeQueryAndPrintResultAll
+
+   // runs the query on every shard at once, results are in shard order
+   private List<List<List<String>>> fanOut (final String query) throws SQLException {
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      // every shard query runs within the deadline of the calling operation
+      final Operation op = Operation.current();
+      for (final Cafe shard : _shards) {
+         pending.add(_fanout.submit(() -> {
+            Operation outer = Operation.swap(op);
+            try {
+               return shard.executeQueryAndReturnResult(query);
+            }finally {
+               Operation.swap(outer);
+            }
+         }));
+      }
+
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      for (Future<List<List<String>>> f : pending) {
+         try {
+            results.add(f.get());
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards");
+         }catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException)
+               throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+         }
+      }
+      return results;
+   }//end fanOut
+
+   /**
+    * @return the shards, in shard number order
+    */
+   public Cafe[] members () {
+      return _shards;
+   }//end members
+
+   /**
+    * Method to close every shard connection.
+    */
+   public void cleanup () {
+      _fanout.shutdownNow();
+      for (Cafe shard : _shards)
+         shard.cleanup();
+   }//end cleanup
+
+}//end CafeShards
@@ -0,0 +1,90 @@
+/*
+ * Storage behind the register operations
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * What logging in, browsing the menu and taking orders need from storage.
+ * PostgresStore is the database itself, MemoryStore keeps a register
+ * working while the database cannot be reached.
+ */
+public interface CafeStore {
+
+   /**
+    * Columns of the rows returned by menu
+    */
+   String[] MENU_COLUMNS = { "itemname", "type", "price", "description", "imageurl" };
+
+   /**
+    * A call against whichever store is current, see Cafe.withStore
+    */
+   interface Call<T> {
+      T call (CafeStore store) throws SQLException;
+   }//end Call
+
+   /**
+    * @param login the user login
+    * @param password the password
+    * @return true when the user exists with that password
+    * @throws java.sql.SQLException when the store could not be read
+    */
+   boolean checkPassword (String login, String password) throws SQLException;
+
+   /**
+    * @param login the user login
+    * @return the user type (Customer, Employee, Manager), null for no user
+    * @throws java.sql.SQLException when the store could not be read
+    */
+   String userType (String login) throws SQLException;
+
+   /**
+    * @param orderBy itemName or type
+    * @return every menu item as a row of MENU_COLUMNS
+    * @throws java.sql.SQLException when the store could not be read
+    */
+   List<List<String>> menu (String orderBy) throws SQLException;
+
+   /**
+    * @param itemName the item
+    * @return true when the item is on the menu
+    * @throws java.sql.SQLException when the store could not be read
+    */
+   boolean menuHas (String itemName) throws SQLException;
+
+   /**
+    * @param quantities how many of each item
+    * @return the total price of the items
+    * @throws java.sql.SQLException when the store could not be read
+    */
+   double orderTotal (Map<String, Integer> quantities) throws SQLException;
+
+   /**
+    * Stores a new order with its items
+    *
+    * @param orderid the id reserved for the order (see Cafe.reserveOrderId),
+    *        0 when none could be reserved
+    * @param login the user placing the order
+    * @param paid whether the order is paid
+    * @param placedAt when the order was placed
+    * @param quantities how many of each item
+    * @param comments the comments of each item
+    * @param total the order total
+    * @return the order id, or minus the offline number of an order that
+    *         gets its id once it reaches the database
+    * @throws java.sql.SQLException when the order could not be stored
+    */
+   int placeOrder (int orderid, String login, boolean paid, Timestamp placedAt, Map<String, Integer> quantities,
+                   Map<String, String> comments, double total) throws SQLException;
+
+}//end CafeStore
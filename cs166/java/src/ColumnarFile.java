@@ -0,0 +1,313 @@
+/*
+ * Compressed columnar export file
+ * ===============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+
+
+/**
+ * Writes query results into a compressed, column oriented file.
+ *
+ * Layout (all numbers big endian, as written by DataOutputStream):
+ *
+ *   "CAFECOL1"                 magic, 8 bytes
+ *   int    rowCount
+ *   int    columnCount
+ *   per column:
+ *     UTF    name
+ *     byte   type              1 INT32, 2 INT64, 3 FLOAT64, 4 BOOL,
+ *                              5 STRING, 6 TIMESTAMP (INT64 epoch millis)
+ *     long   nullCount
+ *     byte   hasStats          0 when every value is NULL
+ *     min, max                 int / long / double / byte / UTF by type
+ *     long   nullsLength       bytes of the gzipped null bitmap
+ *     long   valuesLength      bytes of the gzipped values
+ *   per column, in the same order:
+ *     gzip   null bitmap       one bit per row, LSB first, 1 = NULL
+ *     gzip   values            one entry per non NULL row: int / long /
+ *                              double / byte, or int length + UTF-8 bytes
+ *
+ * Trailing blanks of char(n) values are removed. The min/max statistics let
+ * a reader skip a file without decompressing it.
+ */
+public class ColumnarFile {
+
+   public static final byte INT32 = 1;
+   public static final byte INT64 = 2;
+   public static final byte FLOAT64 = 3;
+   public static final byte BOOL = 4;
+   public static final byte STRING = 5;
+   public static final byte TIMESTAMP = 6;
+
+   private static final byte[] MAGIC = "CAFECOL1".getBytes(StandardCharsets.US_ASCII);
+
+   // one column being written, values are spilled to temporary files
+   private static class Column {
+      String name;
+      byte type;
+      File nullsFile;
+      File valuesFile;
+      DataOutputStream nulls;
+      DataOutputStream values;
+      int nullBits;
+      long nullCount;
+      boolean hasStats;
+      long minLong, maxLong;
+      double minDouble, maxDouble;
+      String minString, maxString;
+   }//end Column
+
+   private final File _target;
+   private final Column[] _columns;
+   private int _rowCount = 0;
+
+   /**
+    * Starts a new file, it only appears under its name once finish succeeds
+    *
+    * @param target the file to write
+    * @param names the column names
+    * @param types the column types
+    * @throws java.io.IOException when the temporary files cannot be created
+    */
+   public ColumnarFile (File target, String[] names, byte[] types) throws IOException {
+      _target = target;
+      _columns = new Column[names.length];
+      for (int i = 0; i < names.length; ++i) {
+         Column c = new Column();
+         c.name = names[i];
+         c.type = types[i];
+         c.nullsFile = new File(target.getPath() + "." + i + ".nulls.tmp");
+         c.valuesFile = new File(target.getPath() + "." + i + ".values.tmp");
+         c.nulls = spill(c.nullsFile);
+         c.values = spill(c.valuesFile);
+         _columns[i] = c;
+      }
+   }//end ColumnarFile
+
+   private static DataOutputStream spill (File f) throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(
+         new GZIPOutputStream(new FileOutputStream(f), 65536), 65536));
+   }//end spill
+
+   /**
+    * Appends the current row of a result set, column i of the file is read
+    * from column i + 1 of the result set.
+    *
+    * @param rs the result set positioned on a row
+    * @throws java.sql.SQLException when reading the row failed
+    * @throws java.io.IOException when writing failed
+    */
+   public void add (ResultSet rs) throws SQLException, IOException {
+      for (int i = 0; i < _columns.length; ++i) {
+         Column c = _columns[i];
+         boolean isNull;
+         switch (c.type) {
+            case INT32: {
+               int v = rs.getInt(i + 1);
+               isNull = rs.wasNull();
+               if (!isNull) { c.values.writeInt(v); stats(c, v); }
+               break;
+            }
+            case INT64: {
+               long v = rs.getLong(i + 1);
+               isNull = rs.wasNull();
+               if (!isNull) { c.values.writeLong(v); stats(c, v); }
+               break;
+            }
+            case TIMESTAMP: {
+               Timestamp ts = rs.getTimestamp(i + 1);
+               isNull = ts == null;
+               if (!isNull) { c.values.writeLong(ts.getTime()); stats(c, ts.getTime()); }
+               break;
+            }
+            case FLOAT64: {
+               double v = rs.getDouble(i + 1);
+               isNull = rs.wasNull();
+               if (!isNull) { c.values.writeDouble(v); stats(c, v); }
+               break;
+            }
+            case BOOL: {
+               boolean v = rs.getBoolean(i + 1);
+               isNull = rs.wasNull();
+               if (!isNull) { c.values.writeByte(v ? 1 : 0); stats(c, v ? 1 : 0); }
+               break;
+            }
+            default: {
+               String v = rs.getString(i + 1);
+               isNull = v == null;
+               if (!isNull) {
+                  v = v.stripTrailing();
+                  byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+                  c.values.writeInt(bytes.length);
+                  c.values.write(bytes);
+                  stats(c, v);
+               }
+               break;
+            }
+         }
+         if (isNull) {
+            c.nullBits |= 1 << (_rowCount & 7);
+            ++c.nullCount;
+         }
+         if ((_rowCount & 7) == 7) {
+            c.nulls.writeByte(c.nullBits);
+            c.nullBits = 0;
+         }
+      }
+      ++_rowCount;
+   }//end add
+
+   private static void stats (Column c, long v) {
+      if (!c.hasStats) { c.minLong = c.maxLong = v; c.hasStats = true; }
+      else { c.minLong = Math.min(c.minLong, v); c.maxLong = Math.max(c.maxLong, v); }
+   }//end stats
+
+   private static void stats (Column c, double v) {
+      if (!c.hasStats) { c.minDouble = c.maxDouble = v; c.hasStats = true; }
+      else { c.minDouble = Math.min(c.minDouble, v); c.maxDouble = Math.max(c.maxDouble, v); }
+   }//end stats
+
+   private static void stats (Column c, String v) {
+      if (!c.hasStats) { c.minString = c.maxString = v; c.hasStats = true; return; }
+      if (v.compareTo(c.minString) < 0) c.minString = v;
+      if (v.compareTo(c.maxString) > 0) c.maxString = v;
+   }//end stats
+
+   /**
+    * @return the number of rows added so far
+    */
+   public int rowCount () {
+      return _rowCount;
+   }//end rowCount
+
+   /**
+    * Assembles the file from the spilled columns and moves it into place
+    *
+    * @throws java.io.IOException when writing failed
+    */
+   public void finish () throws IOException {
+      for (Column c : _columns) {
+         if ((_rowCount & 7) != 0)
+            c.nulls.writeByte(c.nullBits);
+         c.nulls.close();
+         c.values.close();
+      }
+
+      File partial = new File(_target.getPath() + ".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 65536));
+      try {
+         out.write(MAGIC);
+         out.writeInt(_rowCount);
+         out.writeInt(_columns.length);
+         for (Column c : _columns) {
+            out.writeUTF(c.name);
+            out.writeByte(c.type);
+            out.writeLong(c.nullCount);
+            out.writeByte(c.hasStats ? 1 : 0);
+            if (c.hasStats) {
+               switch (c.type) {
+                  case INT32: out.writeInt((int) c.minLong); out.writeInt((int) c.maxLong); break;
+                  case INT64: case TIMESTAMP: out.writeLong(c.minLong); out.writeLong(c.maxLong); break;
+                  case FLOAT64: out.writeDouble(c.minDouble); out.writeDouble(c.maxDouble); break;
+                  case BOOL: out.writeByte((int) c.minLong); out.writeByte((int) c.maxLong); break;
+                  default: out.writeUTF(c.minString); out.writeUTF(c.maxString); break;
+               }
+            }
+            out.writeLong(c.nullsFile.length());
+            out.writeLong(c.valuesFile.length());
+         }
+         for (Column c : _columns) {
+            Files.copy(c.nullsFile.toPath(), out);
+            Files.copy(c.valuesFile.toPath(), out);
+         }
+      }finally {
+         out.close();
+         discardSpill();
+      }
+      Files.move(partial.toPath(), _target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+   }//end finish
+
+   /**
+    * Drops the temporary files of an unfinished file
+    */
+   public void abort () {
+      for (Column c : _columns) {
+         try {
+            c.nulls.close();
+            c.values.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+      discardSpill();
+   }//end abort
+
+   private void discardSpill () {
+      for (Column c : _columns) {
+         c.nullsFile.delete();
+         c.valuesFile.delete();
+      }
+   }//end discardSpill
+
+   /**
+    * Prints the header and statistics of columnar files
+    *
+    * @param args the files to describe
+    */
+   public static void main (String[] args) throws IOException {
+      for (String name : args) {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+         try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+               System.err.println(name + ": not a columnar file");
+               continue;
+            }
+            System.out.println(name + ": " + in.readInt() + " rows");
+            int columns = in.readInt();
+            for (int i = 0; i < columns; ++i) {
+               String column = in.readUTF();
+               byte type = in.readByte();
+               long nulls = in.readLong();
+               String range = "all NULL";
+               if (in.readByte() != 0) {
+                  switch (type) {
+                     case INT32: range = in.readInt() + " .. " + in.readInt(); break;
+                     case INT64: range = in.readLong() + " .. " + in.readLong(); break;
+                     case TIMESTAMP: range = new Timestamp(in.readLong()) + " .. " + new Timestamp(in.readLong()); break;
+                     case FLOAT64: range = in.readDouble() + " .. " + in.readDouble(); break;
+                     case BOOL: range = in.readByte() + " .. " + in.readByte(); break;
+                     default: range = "'" + in.readUTF() + "' .. '" + in.readUTF() + "'"; break;
+                  }
+               }
+               long size = in.readLong() + in.readLong();
+               System.out.println("\t" + column + "\t" + range + "\t" + nulls + " NULL\t" + size + " bytes");
+            }
+         }finally {
+            in.close();
+         }
+      }
+   }//end main
+
+}//end ColumnarFile
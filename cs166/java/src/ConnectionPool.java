@@ -0,0 +1,220 @@
+/*
+ * Bounded JDBC connection pool
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+
+/**
+ * Keeps up to a fixed number of physical connections to one database. The
+ * connections are opened on demand and handed back with release once the
+ * caller is done with them.
+ */
+public class ConnectionPool {
+
+   // longest wait for the idle queue before checking for a free slot again
+   private static final long WAIT_SLICE_NANOS = 100 * 1000000L;
+
+   private final String _url;
+   private final int _maxConnections;
+   private final String _initSql;
+   private final int _loginTimeoutSeconds;
+   private final BlockingQueue<Connection> _idle = new LinkedBlockingQueue<Connection>();
+   private int _opened = 0;
+   private boolean _closed = false;
+
+   /**
+    * Creates an empty pool
+    *
+    * @param url the connection URL
+    * @param maxConnections the most connections open at once
+    */
+   public ConnectionPool (String url, int maxConnections) {
+      this (url, maxConnections, null);
+   }//end ConnectionPool
+
+   /**
+    * Creates an empty pool whose connections run initSql once when opened,
+    * e.g. to set session limits
+    *
+    * @param url the connection URL
+    * @param maxConnections the most connections open at once
+    * @param initSql statements run on every new connection, or null
+    */
+   public ConnectionPool (String url, int maxConnections, String initSql) {
+      this (url, maxConnections, initSql, 0);
+   }//end ConnectionPool
+
+   /**
+    * Same as above, with a bound on opening a connection
+    *
+    * @param url the connection URL
+    * @param maxConnections the most connections open at once
+    * @param initSql statements run on every new connection, or null
+    * @param loginTimeoutSeconds longest time to connect and log in, 0 for no limit
+    */
+   public ConnectionPool (String url, int maxConnections, String initSql, int loginTimeoutSeconds) {
+      this._url = url;
+      this._maxConnections = maxConnections;
+      this._initSql = initSql;
+      this._loginTimeoutSeconds = loginTimeoutSeconds;
+   }//end ConnectionPool
+
+   /**
+    * Takes an idle connection, opens a new one while below the limit, and
+    * otherwise waits for one to be released, at most until the deadline of
+    * the current operation (the default budget outside of one).
+    *
+    * @return a connection owned by the caller until release
+    * @throws java.sql.SQLException when a new connection could not be opened
+    * @throws java.sql.SQLTimeoutException when no connection came free in time
+    */
+   public Connection take () throws SQLException {
+      Connection c = _idle.poll();
+      if (c != null)
+         return c;
+
+      // opening or waiting counts against the operation of the caller
+      long started = Operation.connectionWaitStart();
+      try {
+         Operation op = Operation.current();
+         long deadline = System.nanoTime() + 1000000L *
+            (op != null ? op.remainingMillis() : Long.getLong("cafe.timeout.default", 5000));
+         while (true) {
+            synchronized (this) {
+               if (_closed)
+                  throw new SQLException("Connection pool is closed");
+               if (_opened < _maxConnections) {
+                  ++_opened;
+                  try {
+                     return open();
+                  }catch (SQLException e) {
+                     --_opened;
+                     throw e;
+                  }
+               }
+            }
+
+            // wakes up now and then, a slot freed by a dropped connection
+            // is not announced through the idle queue
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+               throw new SQLTimeoutException("waited too long for a connection");
+            try {
+               c = _idle.poll(Math.min(left, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+            }catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new SQLException("Interrupted while waiting for a connection");
+            }
+            if (c != null)
+               return c;
+         }
+      }finally {
+         Operation.connectionWaitEnd(started);
+      }
+   }//end take
+
+   private Connection open () throws SQLException {
+      return connect(_url, _initSql, _loginTimeoutSeconds);
+   }//end open
+
+   /**
+    * Opens a connection the way the pool does, for connections kept outside
+    * of a pool
+    *
+    * @param url the connection URL
+    * @param initSql statements run once on the new connection, or null
+    * @param loginTimeoutSeconds longest time to connect and log in, 0 for no limit
+    * @return the connection
+    * @throws java.sql.SQLException when the connection could not be opened
+    */
+   public static Connection connect (String url, String initSql, int loginTimeoutSeconds) throws SQLException {
+      Properties props = new Properties();
+      if (loginTimeoutSeconds > 0) {
+         props.setProperty("connectTimeout", String.valueOf(loginTimeoutSeconds));
+         props.setProperty("loginTimeout", String.valueOf(loginTimeoutSeconds));
+      }
+      Connection c = DriverManager.getConnection(url, props);
+      if (initSql != null) {
+         try {
+            Statement stmt = c.createStatement();
+            stmt.execute(initSql);
+            stmt.close();
+         }catch (SQLException e) {
+            c.close();
+            throw e;
+         }
+      }
+      return c;
+   }//end connect
+
+   /**
+    * Hands a connection back. Broken connections are dropped so a new one
+    * can take their place.
+    *
+    * @param c the connection obtained from take
+    */
+   public void release (Connection c) {
+      boolean broken;
+      try {
+         broken = c.isClosed() || !c.getAutoCommit();
+      }catch (SQLException e) {
+         broken = true;
+      }
+      synchronized (this) {
+         if (!broken && !_closed) {
+            _idle.offer(c);
+            return;
+         }
+         --_opened;
+      }
+      try {
+         c.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end release
+
+   /**
+    * Method to close every idle connection, busy ones are closed on release.
+    */
+   public void close () {
+      synchronized (this) {
+         _closed = true;
+      }
+      closeIdle();
+   }//end close
+
+   /**
+    * Method to close the idle connections, e.g. after the server went away,
+    * the pool opens new ones on demand.
+    */
+   public void closeIdle () {
+      Connection c;
+      while ((c = _idle.poll()) != null) {
+         synchronized (this) {
+            --_opened;
+         }
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end closeIdle
+
+}//end ConnectionPool
@@ -0,0 +1,325 @@
+/*
+ * Write-behind buffer for ItemStatus transitions
+ * ==============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+
+/**
+ * Buffers ItemStatus status changes coming from the kitchen and writes them
+ * back to the database in batched transactions. Repeated updates to the same
+ * (orderid, itemName) are coalesced so only the latest status is written.
+ *
+ * A change the database rejects for its content (e.g. an item name that is
+ * too long) is dropped and reported instead of being retried forever; only
+ * failures that may go away, like a lost connection, put changes back.
+ *
+ * The buffer owns its own physical connection, opened on the first flush, so
+ * that its transactions never wrap the statements issued by the interactive
+ * session.
+ */
+public class ItemStatusBuffer {
+
+   // one pending status change, itemName == null means every item of the order
+   private static class PendingStatus {
+      String orderid;
+      String itemName;
+      String status;
+      Timestamp lastUpdated;
+   }//end PendingStatus
+
+   // pending changes grouped by order, in the order they have to be applied
+   private Map<String, LinkedHashMap<String, PendingStatus>> _pending =
+      new LinkedHashMap<String, LinkedHashMap<String, PendingStatus>>();
+   private int _pendingCount = 0;
+
+   // a flush is writing, and when the last one committed
+   private volatile boolean _inFlight = false;
+   private volatile long _lastFlushMillis = 0;
+
+   private final String _url;
+   private Connection _connection = null;
+   private final Object _flushLock = new Object();
+   private final int _maxPending;
+   private final ScheduledExecutorService _flusher;
+   private final Thread _shutdownHook;
+
+   /**
+    * Creates a new write-behind buffer
+    *
+    * @param url connection URL of the database to flush to
+    * @param flushMillis interval between background flushes
+    * @param maxPending number of coalesced changes that forces a flush
+    */
+   public ItemStatusBuffer (String url, long flushMillis, int maxPending) {
+      this._url = url;
+      this._maxPending = maxPending;
+
+      this._flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "itemstatus-flusher");
+         t.setDaemon(true);
+         return t;
+      });
+      this._flusher.scheduleWithFixedDelay(this::flushQuietly,
+                                           flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+
+      // make sure nothing is lost when the register is closed with ^C
+      this._shutdownHook = new Thread(this::flushQuietly, "itemstatus-shutdown-flush");
+      Runtime.getRuntime().addShutdownHook(this._shutdownHook);
+   }//end ItemStatusBuffer
+
+   /**
+    * Queues a status change for one item of an order, or for every item of
+    * the order when itemName is null.
+    *
+    * @param orderid the order to update
+    * @param itemName the item to update, null for the whole order
+    * @param status the new status
+    */
+   public void update (String orderid, String itemName, String status) {
+      PendingStatus change = new PendingStatus();
+      change.orderid = orderid;
+      change.itemName = itemName;
+      change.status = status;
+      change.lastUpdated = new Timestamp(System.currentTimeMillis());
+
+      boolean full;
+      synchronized (this) {
+         LinkedHashMap<String, PendingStatus> items = _pending.get(orderid);
+         if (items == null) {
+            items = new LinkedHashMap<String, PendingStatus>();
+            _pending.put(orderid, items);
+         }
+         // an update of the whole order supersedes every pending item update
+         if (itemName == null) {
+            _pendingCount -= items.size();
+            items.clear();
+         }
+         if (items.put(itemName, change) == null)
+            ++_pendingCount;
+         full = _pendingCount >= _maxPending;
+      }
+      if (full)
+         _flusher.execute(this::flushQuietly);
+   }//end update
+
+   /**
+    * @return true when there are changes that have not been committed yet,
+    *         including changes a flush is writing right now
+    */
+   public synchronized boolean hasPending () {
+      return _pendingCount > 0 || _inFlight;
+   }//end hasPending
+
+   /**
+    * @return when the last flush committed, in epoch millis
+    */
+   public long lastFlushMillis () {
+      return _lastFlushMillis;
+   }//end lastFlushMillis
+
+   /**
+    * Writes every pending change in a single transaction. When that fails
+    * for a reason that may go away the changes are put back into the
+    * buffer, behind anything newer that was queued in the meantime.
+    * Otherwise they are written one at a time and the ones the database
+    * rejects are dropped.
+    *
+    * @throws java.sql.SQLException when the flush failed and was requeued
+    */
+   public void flush () throws SQLException {
+      // only one flush may be in flight so transactions commit in order
+      synchronized (_flushLock) {
+         Map<String, LinkedHashMap<String, PendingStatus>> batch;
+         synchronized (this) {
+            if (_pendingCount == 0)
+               return;
+            batch = _pending;
+            _pending = new LinkedHashMap<String, LinkedHashMap<String, PendingStatus>>();
+            _pendingCount = 0;
+            _inFlight = true;
+         }
+
+         List<PendingStatus> changes = new ArrayList<PendingStatus>();
+         for (LinkedHashMap<String, PendingStatus> items : batch.values())
+            changes.addAll(items.values());
+
+         try {
+            if (_connection == null || _connection.isClosed())
+               _connection = DriverManager.getConnection(_url);
+            _connection.setAutoCommit(false);
+            write(changes);
+            _connection.commit();
+            _lastFlushMillis = System.currentTimeMillis();
+         }catch (SQLException e) {
+            try {
+               if (_connection != null)
+                  _connection.rollback();
+            }catch (SQLException ignored) {
+               // the connection is gone, the changes are requeued below
+            }
+            if (isTransient(e)) {
+               requeue(batch);
+               throw e;
+            }
+            writeOneByOne(batch);
+            _lastFlushMillis = System.currentTimeMillis();
+         }finally {
+            _inFlight = false;
+            try {
+               if (_connection != null)
+                  _connection.setAutoCommit(true);
+            }catch (SQLException ignored) {
+               // ignored.
+            }
+         }
+      }
+   }//end flush
+
+   // whole order updates come first in their order, so they run first
+   private void write (List<PendingStatus> changes) throws SQLException {
+      PreparedStatement byOrder = _connection.prepareStatement(
+         "UPDATE ItemStatus SET status = ?, lastUpdated = ? WHERE orderid = ?");
+      PreparedStatement byItem = _connection.prepareStatement(
+         "UPDATE ItemStatus SET status = ?, lastUpdated = ? WHERE orderid = ? AND itemName = ?");
+      try {
+         for (PendingStatus change : changes) {
+            PreparedStatement stmt = change.itemName == null ? byOrder : byItem;
+            bind(stmt, change);
+            stmt.addBatch();
+         }
+         byOrder.executeBatch();
+         byItem.executeBatch();
+      }finally {
+         byOrder.close();
+         byItem.close();
+      }
+   }//end write
+
+   private static void bind (PreparedStatement stmt, PendingStatus change) throws SQLException {
+      int orderid;
+      try {
+         orderid = Integer.parseInt(change.orderid.trim());
+      }catch (NumberFormatException e) {
+         throw new SQLException("invalid order id " + change.orderid, "22P02");
+      }
+      stmt.setString(1, change.status);
+      stmt.setTimestamp(2, change.lastUpdated);
+      stmt.setInt(3, orderid);
+      if (change.itemName != null)
+         stmt.setString(4, change.itemName);
+   }//end bind
+
+   // applies the changes one by one in autocommit, dropping rejected ones
+   private void writeOneByOne (Map<String, LinkedHashMap<String, PendingStatus>> batch) throws SQLException {
+      for (LinkedHashMap<String, PendingStatus> items : batch.values()) {
+         Iterator<PendingStatus> it = items.values().iterator();
+         while (it.hasNext()) {
+            PendingStatus change = it.next();
+            try {
+               _connection.setAutoCommit(true);
+               List<PendingStatus> one = new ArrayList<PendingStatus>();
+               one.add(change);
+               write(one);
+            }catch (SQLException e) {
+               if (isTransient(e)) {
+                  // what was written is removed, the rest goes back
+                  requeue(batch);
+                  throw e;
+               }
+               System.err.println("Error - Dropped item status " + change.status + " of order " + change.orderid
+                                  + (change.itemName == null ? "" : ", item " + change.itemName) + ": " + e.getMessage());
+            }
+            it.remove();
+         }
+      }
+   }//end writeOneByOne
+
+   // connection loss, serialization failures, lack of resources, cancels
+   // and lock timeouts may go away, anything else is about the change itself
+   private static boolean isTransient (SQLException e) {
+      // a failed batch carries the error of the statement in its chain
+      if (e.getNextException() != null)
+         e = e.getNextException();
+      String state = e.getSQLState();
+      if (state == null)
+         return true;
+      return state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+          || state.startsWith("57") || state.equals("55P03");
+   }//end isTransient
+
+   // background flush, errors are reported and retried on the next run
+   private void flushQuietly () {
+      try {
+         flush();
+      }catch (SQLException e) {
+         System.err.println("Error - Unable to flush item status: " + e.getMessage());
+      }
+   }//end flushQuietly
+
+   // puts failed changes back without overwriting newer ones
+   private synchronized void requeue (Map<String, LinkedHashMap<String, PendingStatus>> batch) {
+      Map<String, LinkedHashMap<String, PendingStatus>> merged = batch;
+      for (Map.Entry<String, LinkedHashMap<String, PendingStatus>> e : _pending.entrySet()) {
+         LinkedHashMap<String, PendingStatus> items = merged.get(e.getKey());
+         if (items == null || e.getValue().containsKey(null)) {
+            merged.put(e.getKey(), e.getValue());
+            continue;
+         }
+         for (PendingStatus change : e.getValue().values()) {
+            items.remove(change.itemName);
+            items.put(change.itemName, change);
+         }
+      }
+      _pending = merged;
+      _pendingCount = 0;
+      for (LinkedHashMap<String, PendingStatus> items : merged.values())
+         _pendingCount += items.size();
+   }//end requeue
+
+   /**
+    * Stops the background flusher, writes what is left and closes the
+    * dedicated connection.
+    */
+   public void close () {
+      _flusher.shutdown();
+      try {
+         _flusher.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      flushQuietly();
+      try {
+         Runtime.getRuntime().removeShutdownHook(_shutdownHook);
+      }catch (IllegalStateException e) {
+         // already shutting down
+      }
+      synchronized (_flushLock) {
+         try {
+            if (_connection != null)
+               _connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end close
+
+}//end ItemStatusBuffer
@@ -0,0 +1,260 @@
+/*
+ * Flight recording summary
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+
+
+/**
+ * Summarizes a flight recording made with scripts/cafe.jfc: where the time
+ * of each Cafe operation went, the sites using the most CPU, waiting the
+ * longest on database socket reads and allocating the most memory, and the
+ * sites blocked the longest on monitors, in Object.wait and on locks.
+ *
+ * A site is the first frame of the Cafe code in the stack, followed by the
+ * JDK or driver method on top of the stack when that is a different one,
+ * e.g. "Cafe.executeQueryAndReturnResult:540 via java.util.Arrays.copyOf".
+ */
+public class JfrSummary {
+
+   // events of one site, value is bytes or nanoseconds
+   private static class Total {
+      long count = 0;
+      long value = 0;
+   }//end Total
+
+   // sums of the cafe.Operation events of one operation
+   private static class OperationTotal {
+      long count, duration, connectionWait, databaseTime, databaseWallTime, userWait, clientTime, rows, bytes;
+   }//end OperationTotal
+
+   private final Map<String, OperationTotal> _operations = new TreeMap<String, OperationTotal>();
+   private final Map<String, Total> _cpu = new HashMap<String, Total>();
+   private final Map<String, Total> _socketReads = new HashMap<String, Total>();
+   private final Map<String, Total> _allocations = new HashMap<String, Total>();
+   private final Map<String, Total> _contention = new HashMap<String, Total>();
+
+   /**
+    * Adds up the events of a recording
+    *
+    * @param file the .jfr file
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public void read (String file) throws IOException {
+      RecordingFile recording = new RecordingFile(Paths.get(file));
+      try {
+         while (recording.hasMoreEvents()) {
+            RecordedEvent e = recording.readEvent();
+            switch (e.getEventType().getName()) {
+               case "cafe.Operation":
+                  operation(e);
+                  break;
+               case "jdk.ExecutionSample":
+                  // one sample per period of a thread running Java code
+                  add(_cpu, site(e, true), 1);
+                  break;
+               case "jdk.SocketRead":
+                  // the reads the database made the client wait for
+                  add(_socketReads, site(e, true) + " (port " + e.getInt("port") + ")", e.getDuration().toNanos());
+                  break;
+               case "jdk.ObjectAllocationSample":
+                  add(_allocations, site(e, true) + " (" + className(e.getClass("objectClass")) + ")", e.getLong("weight"));
+                  break;
+               case "jdk.JavaMonitorEnter": {
+                  String site = site(e, false);
+                  if (site != null)
+                     add(_contention, site + " (monitor " + className(e.getClass("monitorClass")) + ")", e.getDuration().toNanos());
+                  break;
+               }
+               case "jdk.JavaMonitorWait": {
+                  // Object.wait, e.g. queued in admission control
+                  String site = site(e, false);
+                  if (site != null)
+                     add(_contention, site + " (wait " + className(e.getClass("monitorClass")) + ")", e.getDuration().toNanos());
+                  break;
+               }
+               case "jdk.ThreadPark": {
+                  // idle pool threads park outside of Cafe code
+                  String site = site(e, false);
+                  if (site != null)
+                     add(_contention, site + " (park " + className(e.getClass("parkedClass")) + ")", e.getDuration().toNanos());
+                  break;
+               }
+               default:
+                  break;
+            }
+         }
+      }finally {
+         recording.close();
+      }
+   }//end read
+
+   private void operation (RecordedEvent e) {
+      String name = e.getString("operation");
+      OperationTotal t = _operations.get(name);
+      if (t == null) {
+         t = new OperationTotal();
+         _operations.put(name, t);
+      }
+      ++t.count;
+      t.duration += e.getDuration().toNanos();
+      t.connectionWait += e.getLong("connectionWait");
+      t.databaseTime += e.getLong("databaseTime");
+      t.databaseWallTime += e.getLong("databaseWallTime");
+      t.userWait += e.getLong("userWait");
+      t.clientTime += e.getLong("clientTime");
+      t.rows += e.getLong("rows");
+      t.bytes += e.getLong("bytes");
+   }//end operation
+
+   private static void add (Map<String, Total> totals, String site, long value) {
+      Total t = totals.get(site);
+      if (t == null) {
+         t = new Total();
+         totals.put(site, t);
+      }
+      ++t.count;
+      t.value += value;
+   }//end add
+
+   // the first Cafe frame and the top frame, null without a Cafe frame
+   // unless orTop is set
+   private static String site (RecordedEvent e, boolean orTop) {
+      RecordedStackTrace stack = e.getStackTrace();
+      if (stack == null || stack.getFrames().isEmpty())
+         return orTop ? "(no stack trace)" : null;
+      List<RecordedFrame> frames = stack.getFrames();
+      String top = frame(frames.get(0));
+      for (RecordedFrame f : frames) {
+         if (!f.isJavaFrame() || isLibrary(f.getMethod().getType().getName()))
+            continue;
+         String app = frame(f);
+         return f == frames.get(0) ? app : app + " via " + method(frames.get(0));
+      }
+      return orTop ? top : null;
+   }//end site
+
+   private static boolean isLibrary (String className) {
+      return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("jdk.")
+          || className.startsWith("sun.") || className.startsWith("com.sun.") || className.startsWith("org.postgresql.");
+   }//end isLibrary
+
+   private static String method (RecordedFrame f) {
+      return f.getMethod().getType().getName() + "." + f.getMethod().getName();
+   }//end method
+
+   private static String frame (RecordedFrame f) {
+      return f.getLineNumber() > 0 ? method(f) + ":" + f.getLineNumber() : method(f);
+   }//end frame
+
+   private static String className (RecordedClass c) {
+      return c == null ? "" : c.getName();
+   }//end className
+
+   /**
+    * Prints the operations and the top CPU, socket read, allocation and
+    * contention sites
+    *
+    * @param n number of sites per list
+    */
+   public void print (int n) {
+      // conn wait and database are summed over concurrent statements, db wall
+      // is the wall clock time with a statement in the database
+      System.out.println("Operations (avg ms)");
+      System.out.println(String.format("   %-22s %6s %9s %9s %9s %9s %9s %9s %8s %10s",
+                                       "operation", "count", "total", "conn wait", "database", "db wall", "user", "client", "rows", "bytes"));
+      for (Map.Entry<String, OperationTotal> e : _operations.entrySet()) {
+         OperationTotal t = e.getValue();
+         System.out.println(String.format("   %-22s %6d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %8d %10s",
+                                          e.getKey(), t.count, avgMillis(t.duration, t.count), avgMillis(t.connectionWait, t.count),
+                                          avgMillis(t.databaseTime, t.count), avgMillis(t.databaseWallTime, t.count), avgMillis(t.userWait, t.count),
+                                          avgMillis(t.clientTime, t.count), t.rows / t.count, bytes(t.bytes / t.count)));
+      }
+
+      System.out.println();
+      System.out.println("Top CPU sites (execution samples)");
+      long samples = 0;
+      for (Total t : _cpu.values())
+         samples += t.count;
+      for (Map.Entry<String, Total> e : top(_cpu, n))
+         System.out.println(String.format("   %5.1f %% %6d x  %s", 100.0 * e.getValue().count / samples, e.getValue().count, e.getKey()));
+
+      System.out.println();
+      System.out.println("Top database read sites (socket reads over the threshold)");
+      for (Map.Entry<String, Total> e : top(_socketReads, n))
+         System.out.println(String.format("   %8.1f ms %6d x  %s", e.getValue().value / 1e6, e.getValue().count, e.getKey()));
+
+      System.out.println();
+      System.out.println("Top allocation sites (sampled weight)");
+      for (Map.Entry<String, Total> e : top(_allocations, n))
+         System.out.println(String.format("   %10s  %s", bytes(e.getValue().value), e.getKey()));
+
+      System.out.println();
+      System.out.println("Top contention sites (time blocked)");
+      for (Map.Entry<String, Total> e : top(_contention, n))
+         System.out.println(String.format("   %8.1f ms %6d x  %s", e.getValue().value / 1e6, e.getValue().count, e.getKey()));
+   }//end print
+
+   private static List<Map.Entry<String, Total>> top (Map<String, Total> totals, int n) {
+      List<Map.Entry<String, Total>> entries = new ArrayList<Map.Entry<String, Total>>(totals.entrySet());
+      Collections.sort(entries, (a, b) -> Long.compare(b.getValue().value, a.getValue().value));
+      return entries.subList(0, Math.min(n, entries.size()));
+   }//end top
+
+   private static double avgMillis (long nanos, long count) {
+      return nanos / 1e6 / count;
+   }//end avgMillis
+
+   private static String bytes (long bytes) {
+      if (bytes >= 1L << 30)
+         return String.format("%.1f GB", bytes / (double) (1L << 30));
+      if (bytes >= 1L << 20)
+         return String.format("%.1f MB", bytes / (double) (1L << 20));
+      if (bytes >= 1L << 10)
+         return String.format("%.1f KB", bytes / (double) (1L << 10));
+      return bytes + " B";
+   }//end bytes
+
+   /**
+    * The main execution method
+    *
+    * @param args <recording.jfr> [number of sites]
+    */
+   public static void main (String[] args) {
+      if (args.length < 1) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            JfrSummary.class.getName () +
+            " <recording.jfr> [<sites>]");
+         return;
+      }//end if
+
+      JfrSummary summary = new JfrSummary();
+      try {
+         summary.read(args[0]);
+         summary.print(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+      }catch (IOException e) {
+         System.err.println(e.getMessage());
+      }
+   }//end main
+
+}//end JfrSummary
@@ -0,0 +1,592 @@
+/*
+ * In-memory storage for offline registers
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * Keeps a copy of the menu and the users in memory and takes orders while
+ * the database cannot be reached.
+ *
+ * Everything lives in an append-only journal file, one record per line,
+ * fields separated by tabs:
+ *
+ *   C                                       a snapshot follows, forget menu and users
+ *   M itemName type price description imageURL
+ *   U login salt$hash type                  hash is SHA-256 over salt and password
+ *   O number login paid placedAtMillis total    an order taken offline
+ *   I number itemName quantity comments
+ *   A number orderid                        orderid was picked for the order
+ *   S number orderid                        the order is in the database
+ *
+ * Backslash, tab, carriage return and line feed in a field are written as
+ * \\, \t, \r and \n, and nothing else is escaped, so a field reads back
+ * exactly as it was written. Passwords never reach the file, only a salted
+ * hash to check them against.
+ *
+ * Starting the store replays the journal. A new snapshot rewrites the file
+ * with only the snapshot and the orders not yet in the database, so the
+ * file stays as small as the data it holds.
+ */
+public class MemoryStore implements CafeStore {
+
+   // orders sent to the database in one transaction
+   private static final int SYNC_BATCH = 100;
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /**
+    * Open addressing hash map from int keys (never 0) to values, without
+    * boxing the keys
+    */
+   static class IntMap<V> {
+      private int[] _keys = new int[16];
+      private Object[] _values = new Object[16];
+      private int _size = 0;
+
+      private int slot (int key) {
+         int h = key * 0x9e3779b9;
+         return (h ^ (h >>> 16)) & (_keys.length - 1);
+      }
+
+      @SuppressWarnings("unchecked")
+      V get (int key) {
+         for (int i = slot(key); _keys[i] != 0; i = (i + 1) & (_keys.length - 1))
+            if (_keys[i] == key)
+               return (V) _values[i];
+         return null;
+      }
+
+      void put (int key, V value) {
+         if ((_size + 1) * 2 > _keys.length)
+            resize();
+         int i = slot(key);
+         while (_keys[i] != 0 && _keys[i] != key)
+            i = (i + 1) & (_keys.length - 1);
+         if (_keys[i] == 0)
+            ++_size;
+         _keys[i] = key;
+         _values[i] = value;
+      }
+
+      void remove (int key) {
+         int i = slot(key);
+         while (_keys[i] != key) {
+            if (_keys[i] == 0)
+               return;
+            i = (i + 1) & (_keys.length - 1);
+         }
+         _keys[i] = 0;
+         _values[i] = null;
+         --_size;
+         // moves later entries of the probe chain into the gap
+         for (int j = (i + 1) & (_keys.length - 1); _keys[j] != 0; j = (j + 1) & (_keys.length - 1)) {
+            int key2 = _keys[j];
+            Object value2 = _values[j];
+            _keys[j] = 0;
+            _values[j] = null;
+            --_size;
+            put(key2, cast(value2));
+         }
+      }
+
+      @SuppressWarnings("unchecked")
+      private V cast (Object value) {
+         return (V) value;
+      }
+
+      private void resize () {
+         int[] keys = _keys;
+         Object[] values = _values;
+         _keys = new int[keys.length * 2];
+         _values = new Object[keys.length * 2];
+         _size = 0;
+         for (int i = 0; i < keys.length; ++i)
+            if (keys[i] != 0)
+               put(keys[i], cast(values[i]));
+      }
+
+      int size () {
+         return _size;
+      }
+
+      @SuppressWarnings("unchecked")
+      List<V> values () {
+         List<V> values = new ArrayList<V>(_size);
+         for (int i = 0; i < _keys.length; ++i)
+            if (_keys[i] != 0)
+               values.add((V) _values[i]);
+         return values;
+      }
+   }//end IntMap
+
+   // an order taken offline
+   private static class PendingOrder {
+      int number;
+      String login;
+      boolean paid;
+      long placedAt;
+      double total;
+      int orderid = 0;
+      final Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+      final Map<String, String> comments = new LinkedHashMap<String, String>();
+   }//end PendingOrder
+
+   private final File _file;
+   private FileOutputStream _out;
+   private Writer _journal;
+
+   private Map<String, String[]> _menu = new LinkedHashMap<String, String[]>();
+   private Map<String, String[]> _users = new LinkedHashMap<String, String[]>();
+   private final IntMap<PendingOrder> _pending = new IntMap<PendingOrder>();
+   private int _nextNumber = 1;
+
+   /**
+    * Opens the store, replaying its journal when the file exists
+    *
+    * @param file the journal file
+    * @throws java.io.IOException when the journal cannot be read or opened
+    */
+   public MemoryStore (File file) throws IOException {
+      this._file = file;
+      if (file.exists())
+         replay();
+      openJournal();
+   }//end MemoryStore
+
+   private void replay () throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8));
+      try {
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] f = fields(line);
+            try {
+               switch (f[0]) {
+                  case "C":
+                     _menu = new LinkedHashMap<String, String[]>();
+                     _users = new LinkedHashMap<String, String[]>();
+                     break;
+                  case "M": _menu.put(f[1], Arrays.copyOfRange(f, 1, 6)); break;
+                  case "U":
+                     // journals written before passwords were hashed
+                     _users.put(f[1], new String[] { f[2].contains("$") ? f[2] : hashPassword(f[2]), f[3] });
+                     break;
+                  case "O": {
+                     PendingOrder o = new PendingOrder();
+                     o.number = Integer.parseInt(f[1]);
+                     o.login = f[2];
+                     o.paid = Boolean.parseBoolean(f[3]);
+                     o.placedAt = Long.parseLong(f[4]);
+                     o.total = Double.parseDouble(f[5]);
+                     _pending.put(o.number, o);
+                     _nextNumber = Math.max(_nextNumber, o.number + 1);
+                     break;
+                  }
+                  case "I": {
+                     PendingOrder o = _pending.get(Integer.parseInt(f[1]));
+                     if (o != null) {
+                        o.quantities.put(f[2], Integer.parseInt(f[3]));
+                        o.comments.put(f[2], f[4]);
+                     }
+                     break;
+                  }
+                  case "A": {
+                     PendingOrder o = _pending.get(Integer.parseInt(f[1]));
+                     if (o != null)
+                        o.orderid = Integer.parseInt(f[2]);
+                     break;
+                  }
+                  case "S": _pending.remove(Integer.parseInt(f[1])); break;
+                  default: break;
+               }
+            }catch (NumberFormatException e) {
+               // a torn last line after a crash
+            }
+         }
+      }finally {
+         in.close();
+      }
+   }//end replay
+
+   private void openJournal () throws IOException {
+      _out = new FileOutputStream(_file, true);
+      _journal = new BufferedWriter(new OutputStreamWriter(_out, StandardCharsets.UTF_8));
+   }//end openJournal
+
+   // appends records, forced to disk when they must survive a crash
+   private void append (List<String> records, boolean durable) throws SQLException {
+      try {
+         for (String record : records)
+            _journal.write(record + "\n");
+         _journal.flush();
+         if (durable)
+            _out.getFD().sync();
+      }catch (IOException e) {
+         throw new SQLException("Unable to write the offline journal: " + e.getMessage());
+      }
+   }//end append
+
+   // forces the rename of the journal to disk; not every platform can open
+   // a directory, there the rename is as durable as the platform makes it
+   private void syncDirectory () {
+      try {
+         FileChannel dir = FileChannel.open(_file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+         try {
+            dir.force(true);
+         }finally {
+            dir.close();
+         }
+      }catch (IOException e) {
+         // ignored.
+      }
+   }//end syncDirectory
+
+   private static String record (Object... fields) {
+      StringBuilder s = new StringBuilder();
+      for (Object field : fields) {
+         if (s.length() > 0)
+            s.append('\t');
+         String text = String.valueOf(field);
+         for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+               case '\\': s.append("\\\\"); break;
+               case '\t': s.append("\\t"); break;
+               case '\r': s.append("\\r"); break;
+               case '\n': s.append("\\n"); break;
+               default: s.append(c); break;
+            }
+         }
+      }
+      return s.toString();
+   }//end record
+
+   private static String[] fields (String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (c == '\t') {
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else if (c == '\\' && i + 1 < line.length()) {
+            char next = line.charAt(++i);
+            field.append(next == 't' ? '\t' : next == 'r' ? '\r' : next == 'n' ? '\n' : next);
+         }
+         else {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      // short records (a torn line) read as empty fields
+      while (fields.size() < 6)
+         fields.add("");
+      return fields.toArray(new String[0]);
+   }//end fields
+
+   public synchronized boolean checkPassword (String login, String password) {
+      String[] user = _users.get(login.trim());
+      if (user == null)
+         return false;
+      String salt = user[0].substring(0, user[0].indexOf('$'));
+      byte[] expected = user[0].getBytes(StandardCharsets.US_ASCII);
+      return MessageDigest.isEqual(expected, hashPassword(password, salt).getBytes(StandardCharsets.US_ASCII));
+   }//end checkPassword
+
+   // salt$hash of a password with a new random salt
+   private static String hashPassword (String password) {
+      byte[] salt = new byte[16];
+      RANDOM.nextBytes(salt);
+      return hashPassword(password, hex(salt));
+   }//end hashPassword
+
+   private static String hashPassword (String password, String salt) {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         sha.update(salt.getBytes(StandardCharsets.US_ASCII));
+         return salt + "$" + hex(sha.digest(password.trim().getBytes(StandardCharsets.UTF_8)));
+      }catch (NoSuchAlgorithmException e) {
+         // every Java platform has SHA-256
+         throw new IllegalStateException(e);
+      }
+   }//end hashPassword
+
+   private static String hex (byte[] bytes) {
+      StringBuilder s = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes)
+         s.append(String.format("%02x", b & 0xff));
+      return s.toString();
+   }//end hex
+
+   public synchronized String userType (String login) {
+      String[] user = _users.get(login.trim());
+      return user == null ? null : user[1];
+   }//end userType
+
+   public synchronized List<List<String>> menu (String orderBy) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (String[] item : _menu.values())
+         rows.add(Arrays.asList(item));
+      final int col = orderBy.equalsIgnoreCase("type") ? 1 : 0;
+      rows.sort(Comparator.comparing((List<String> row) -> row.get(col)));
+      return rows;
+   }//end menu
+
+   public synchronized boolean menuHas (String itemName) {
+      return _menu.containsKey(itemName.trim());
+   }//end menuHas
+
+   public synchronized double orderTotal (Map<String, Integer> quantities) throws SQLException {
+      double total = 0;
+      for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+         String[] item = _menu.get(e.getKey().trim());
+         if (item == null)
+            throw new SQLException(e.getKey() + " is not on the menu");
+         total += Float.parseFloat(item[2]) * e.getValue();
+      }
+      return total;
+   }//end orderTotal
+
+   public synchronized int placeOrder (int orderid, String login, boolean paid, Timestamp placedAt, Map<String, Integer> quantities,
+                                       Map<String, String> comments, double total) throws SQLException {
+      PendingOrder o = new PendingOrder();
+      o.number = _nextNumber;
+      o.orderid = orderid;
+      o.login = login;
+      o.paid = paid;
+      o.placedAt = placedAt.getTime();
+      o.total = total;
+      List<String> records = new ArrayList<String>();
+      records.add(record("O", o.number, login, paid, o.placedAt, total));
+      for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+         String comment = comments.getOrDefault(e.getKey(), "");
+         o.quantities.put(e.getKey(), e.getValue());
+         o.comments.put(e.getKey(), comment);
+         records.add(record("I", o.number, e.getKey(), e.getValue(), comment));
+      }
+      // an order the database may have taken before the connection broke
+      // keeps its id, the sync finds it there and does not send it again
+      if (orderid != 0)
+         records.add(record("A", o.number, orderid));
+      // the order only counts as taken once it is on disk
+      append(records, true);
+      ++_nextNumber;
+      _pending.put(o.number, o);
+      return -o.number;
+   }//end placeOrder
+
+   /**
+    * @return the number of orders not yet in the database
+    */
+   public synchronized int pendingOrders () {
+      return _pending.size();
+   }//end pendingOrders
+
+   /**
+    * Sends every order taken offline to the database, SYNC_BATCH orders per
+    * transaction. Order ids are written to the journal before the insert,
+    * so after a crash an order that already made it is recognised by its id.
+    *
+    * @param c a connection of its own, used in transactions
+    * @param ids the order id allocator of the database
+    * @return the number of orders sent
+    * @throws java.sql.SQLException when the database could not be written
+    */
+   public synchronized int syncTo (Connection c, OrderIdAllocator ids) throws SQLException {
+      List<PendingOrder> orders = _pending.values();
+      orders.sort(Comparator.comparingInt((PendingOrder o) -> o.number));
+      int sent = 0;
+      c.setAutoCommit(false);
+      try {
+         for (int from = 0; from < orders.size(); from += SYNC_BATCH) {
+            List<PendingOrder> batch = orders.subList(from, Math.min(from + SYNC_BATCH, orders.size()));
+            List<PendingOrder> missing = new ArrayList<PendingOrder>();
+            List<String> assigned = new ArrayList<String>();
+            for (PendingOrder o : batch) {
+               if (o.orderid != 0 && exists(c, o.orderid)) {
+                  synced(o);
+                  continue;
+               }
+               if (o.orderid == 0) {
+                  o.orderid = Math.toIntExact(ids.next());
+                  assigned.add(record("A", o.number, o.orderid));
+               }
+               missing.add(o);
+            }
+            append(assigned, true);
+            insert(c, missing);
+            c.commit();
+            for (PendingOrder o : missing) {
+               synced(o);
+               System.out.println("Offline order " + o.number + " is now order " + o.orderid);
+            }
+            sent += missing.size();
+         }
+      }catch (SQLException e) {
+         c.rollback();
+         throw e;
+      }finally {
+         c.setAutoCommit(true);
+      }
+      return sent;
+   }//end syncTo
+
+   private void synced (PendingOrder o) throws SQLException {
+      append(Arrays.asList(record("S", o.number, o.orderid)), false);
+      _pending.remove(o.number);
+   }//end synced
+
+   private static boolean exists (Connection c, int orderid) throws SQLException {
+      PreparedStatement stmt = c.prepareStatement("SELECT 1 FROM Orders WHERE orderid = ?");
+      try {
+         stmt.setInt(1, orderid);
+         return stmt.executeQuery().next();
+      }finally {
+         stmt.close();
+      }
+   }//end exists
+
+   private static void insert (Connection c, List<PendingOrder> orders) throws SQLException {
+      PreparedStatement order = c.prepareStatement(
+         "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES (?, ?, ?, ?, ?)");
+      PreparedStatement item = c.prepareStatement(
+         "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, quantity) VALUES (?, ?, ?, 'incomplete', ?, ?)");
+      try {
+         for (PendingOrder o : orders) {
+            Timestamp placedAt = new Timestamp(o.placedAt);
+            order.setInt(1, o.orderid);
+            order.setString(2, o.login);
+            order.setBoolean(3, o.paid);
+            order.setTimestamp(4, placedAt);
+            order.setDouble(5, o.total);
+            order.addBatch();
+            for (Map.Entry<String, Integer> e : o.quantities.entrySet()) {
+               item.setInt(1, o.orderid);
+               item.setString(2, e.getKey());
+               item.setTimestamp(3, placedAt);
+               item.setString(4, o.comments.get(e.getKey()));
+               item.setInt(5, e.getValue());
+               item.addBatch();
+            }
+         }
+         order.executeBatch();
+         item.executeBatch();
+      }finally {
+         order.close();
+         item.close();
+      }
+   }//end insert
+
+   /**
+    * Replaces the copy of the menu and the users with the database's, and
+    * compacts the journal down to that snapshot and the pending orders.
+    *
+    * @param c a connection to the database
+    * @throws java.sql.SQLException when the database could not be read
+    */
+   public void snapshot (Connection c) throws SQLException {
+      Map<String, String[]> menu = new LinkedHashMap<String, String[]>();
+      Map<String, String[]> users = new LinkedHashMap<String, String[]>();
+      Statement stmt = c.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT itemName, type, price, description, imageURL FROM Menu");
+         while (rs.next()) {
+            String[] item = new String[5];
+            for (int i = 0; i < 5; ++i)
+               item[i] = rs.getString(i + 1) == null ? "" : rs.getString(i + 1).trim();
+            menu.put(item[0], item);
+         }
+         rs = stmt.executeQuery("SELECT login, password, type FROM Users");
+         while (rs.next())
+            users.put(rs.getString(1).trim(), new String[] { hashPassword(rs.getString(2)), rs.getString(3) });
+      }finally {
+         stmt.close();
+      }
+
+      synchronized (this) {
+         File compacted = new File(_file.getPath() + ".tmp");
+         try {
+            FileOutputStream file = new FileOutputStream(compacted);
+            Writer out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+            try {
+               out.write(record("C") + "\n");
+               for (String[] item : menu.values())
+                  out.write(record("M", item[0], item[1], item[2], item[3], item[4]) + "\n");
+               for (Map.Entry<String, String[]> e : users.entrySet())
+                  out.write(record("U", e.getKey(), e.getValue()[0], e.getValue()[1]) + "\n");
+               for (PendingOrder o : _pending.values()) {
+                  out.write(record("O", o.number, o.login, o.paid, o.placedAt, o.total) + "\n");
+                  for (Map.Entry<String, Integer> e : o.quantities.entrySet())
+                     out.write(record("I", o.number, e.getKey(), e.getValue(), o.comments.get(e.getKey())) + "\n");
+                  if (o.orderid != 0)
+                     out.write(record("A", o.number, o.orderid) + "\n");
+               }
+               // the new journal is on disk before it replaces the old one
+               out.flush();
+               file.getFD().sync();
+            }finally {
+               out.close();
+            }
+            _journal.close();
+            try {
+               Files.move(compacted.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+               syncDirectory();
+            }finally {
+               openJournal();
+            }
+         }catch (IOException e) {
+            throw new SQLException("Unable to write the offline journal: " + e.getMessage());
+         }
+         _menu = menu;
+         _users = users;
+      }
+   }//end snapshot
+
+   /**
+    * Method to close the journal
+    */
+   public synchronized void close () {
+      try {
+         _journal.close();
+      }catch (IOException e) {
+         // ignored.
+      }
+   }//end close
+
+}//end MemoryStore
@@ -0,0 +1,239 @@
+/*
+ * Deadline of one Cafe operation
+ * ==============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * One user level operation (e.g. BrowseMenuName) and the deadline every
+ * statement it issues has to finish by. The operation is tracked per thread,
+ * work handed to other threads carries it along with swap.
+ *
+ * The operation also adds up where its time went, waiting for a connection,
+ * in the database, waiting on the user and in the client itself, and
+ * reports that with the rows and bytes it read as a cafe.Operation flight
+ * recorder event when it ends.
+ *
+ * Statements of one operation may run at the same time (see the async
+ * methods of Cafe), so the time of each statement is summed up, and the
+ * wall clock time during which at least one of them ran is kept as well.
+ * The client time is what is left of the wall clock time.
+ */
+public class Operation {
+
+   private static final ThreadLocal<Operation> _current = new ThreadLocal<Operation>();
+
+   private final String _name;
+   private volatile long _deadlineNanos;
+   private Operation _outer;
+
+   // profile of the operation, async statements add to it from other threads
+   private final OperationEvent _event = new OperationEvent();
+   private final long _startNanos;
+   private final AtomicLong _connectionWaitNanos = new AtomicLong();
+   private final AtomicLong _databaseNanos = new AtomicLong();
+   private final AtomicLong _userWaitNanos = new AtomicLong();
+   private final AtomicLong _rows = new AtomicLong();
+   private final AtomicLong _bytes = new AtomicLong();
+
+   // statements waiting for a connection or the database, and since when;
+   // those in the database alone, and since when
+   private int _blocked = 0;
+   private long _blockedSince;
+   private long _blockedWallNanos = 0;
+   private int _inDatabase = 0;
+   private long _inDatabaseSince;
+   private long _databaseWallNanos = 0;
+
+   private Operation (String name, long budgetMillis) {
+      this._name = name;
+      this._startNanos = System.nanoTime();
+      this._deadlineNanos = _startNanos + budgetMillis * 1000000L;
+      _event.begin();
+   }//end Operation
+
+   /**
+    * Starts an operation on the calling thread
+    *
+    * @param name the operation name
+    * @param budgetMillis time the operation may take
+    * @return the operation, to be ended with end
+    */
+   public static Operation begin (String name, long budgetMillis) {
+      Operation op = new Operation(name, budgetMillis);
+      op._outer = _current.get();
+      _current.set(op);
+      return op;
+   }//end begin
+
+   /**
+    * Ends the operation, the enclosing one (if any) becomes current again
+    */
+   public void end () {
+      if (_outer == null)
+         _current.remove();
+      else
+         _current.set(_outer);
+
+      _event.end();
+      if (_event.shouldCommit()) {
+         long elapsed = System.nanoTime() - _startNanos;
+         _event.operation = _name;
+         _event.rows = _rows.get();
+         _event.bytes = _bytes.get();
+         _event.connectionWait = _connectionWaitNanos.get();
+         _event.databaseTime = _databaseNanos.get();
+         _event.userWait = _userWaitNanos.get();
+         synchronized (this) {
+            _event.databaseWallTime = _databaseWallNanos;
+            // statements left running by the operation count up to now
+            long now = System.nanoTime();
+            long blocked = _blockedWallNanos + (_blocked > 0 ? now - _blockedSince : 0);
+            _event.clientTime = elapsed - blocked - _event.userWait;
+         }
+         _event.commit();
+      }
+   }//end end
+
+   /**
+    * @return the operation running on the calling thread, or null
+    */
+   public static Operation current () {
+      return _current.get();
+   }//end current
+
+   /**
+    * Makes an operation current on the calling thread
+    *
+    * @param op the operation, may be null
+    * @return the operation that was current before, to be restored with swap
+    */
+   public static Operation swap (Operation op) {
+      Operation previous = _current.get();
+      if (op == null)
+         _current.remove();
+      else
+         _current.set(op);
+      return previous;
+   }//end swap
+
+   /**
+    * @return the operation name
+    */
+   public String name () {
+      return _name;
+   }//end name
+
+   /**
+    * Moves the deadline out, for time the operation spent waiting on the
+    * user rather than on the database
+    *
+    * @param nanos the time to add
+    */
+   public void extend (long nanos) {
+      _deadlineNanos += nanos;
+      _userWaitNanos.addAndGet(nanos);
+   }//end extend
+
+   /**
+    * @return milliseconds left until the deadline, negative once it passed
+    */
+   public long remainingMillis () {
+      return (_deadlineNanos - System.nanoTime()) / 1000000L;
+   }//end remainingMillis
+
+   /**
+    * Starts a wait for a connection or an admission slot of the operation of
+    * the calling thread, if any. Every call has to be followed by
+    * connectionWaitEnd on the same thread, also when the wait failed.
+    *
+    * @return the start time to hand to connectionWaitEnd
+    */
+   public static long connectionWaitStart () {
+      long now = System.nanoTime();
+      Operation op = _current.get();
+      if (op != null)
+         op.enter(false, now);
+      return now;
+   }//end connectionWaitStart
+
+   /**
+    * Ends a wait started with connectionWaitStart
+    *
+    * @param started what connectionWaitStart returned
+    */
+   public static void connectionWaitEnd (long started) {
+      long now = System.nanoTime();
+      Operation op = _current.get();
+      if (op != null) {
+         op._connectionWaitNanos.addAndGet(now - started);
+         op.leave(false, now);
+      }
+   }//end connectionWaitEnd
+
+   /**
+    * Starts waiting for the database to answer a statement of the operation
+    * of the calling thread, if any. Every call has to be followed by
+    * databaseEnd on the same thread, also when the statement failed.
+    *
+    * @return the start time to hand to databaseEnd
+    */
+   public static long databaseStart () {
+      long now = System.nanoTime();
+      Operation op = _current.get();
+      if (op != null)
+         op.enter(true, now);
+      return now;
+   }//end databaseStart
+
+   /**
+    * Ends a wait started with databaseStart
+    *
+    * @param started what databaseStart returned
+    */
+   public static void databaseEnd (long started) {
+      long now = System.nanoTime();
+      Operation op = _current.get();
+      if (op != null) {
+         op._databaseNanos.addAndGet(now - started);
+         op.leave(true, now);
+      }
+   }//end databaseEnd
+
+   private synchronized void enter (boolean database, long now) {
+      if (_blocked++ == 0)
+         _blockedSince = now;
+      if (database && _inDatabase++ == 0)
+         _inDatabaseSince = now;
+   }//end enter
+
+   private synchronized void leave (boolean database, long now) {
+      if (--_blocked == 0)
+         _blockedWallNanos += now - _blockedSince;
+      if (database && --_inDatabase == 0)
+         _databaseWallNanos += now - _inDatabaseSince;
+   }//end leave
+
+   /**
+    * Adds rows read from the database to the operation of the calling
+    * thread, if any
+    *
+    * @param rows the number of rows
+    * @param bytes their approximate size in memory
+    */
+   public static void fetched (long rows, long bytes) {
+      Operation op = _current.get();
+      if (op != null) {
+         op._rows.addAndGet(rows);
+         op._bytes.addAndGet(bytes);
+      }
+   }//end fetched
+
+}//end Operation
@@ -0,0 +1,77 @@
+/*
+ * Flight recorder event of a Cafe operation
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+
+/**
+ * Emitted by Operation.end for every user level operation. The duration of
+ * the event is the whole operation. Connection wait and database time are
+ * summed over statements, which may overlap when an operation runs them
+ * concurrently; database wall time is how long at least one statement was
+ * in the database. The client time is the rest (building results,
+ * formatting, printing) after the user wait and the wall clock time with a
+ * statement waiting for a connection or the database.
+ *
+ * Enabled by the cafe.jfc recording profile, e.g.
+ *   java -XX:StartFlightRecording=settings=cafe.jfc,filename=cafe.jfr ...
+ */
+@Name("cafe.Operation")
+@Label("Cafe Operation")
+@Category("Cafe")
+@Description("One user level operation, e.g. BrowseMenuName")
+@StackTrace(false)
+public class OperationEvent extends Event {
+
+   @Label("Operation")
+   String operation;
+
+   @Label("Rows")
+   @Description("Rows read from the database")
+   long rows;
+
+   @Label("Bytes")
+   @Description("Approximate size of the rows read, in memory")
+   @DataAmount
+   long bytes;
+
+   @Label("Connection Wait")
+   @Description("Time waiting for a connection or an admission slot, summed over statements")
+   @Timespan
+   long connectionWait;
+
+   @Label("Database Time")
+   @Description("Time waiting for the database to answer statements, summed over statements")
+   @Timespan
+   long databaseTime;
+
+   @Label("Database Wall Time")
+   @Description("Time with at least one statement waiting for the database")
+   @Timespan
+   long databaseWallTime;
+
+   @Label("User Wait")
+   @Description("Time waiting for keyboard input")
+   @Timespan
+   long userWait;
+
+   @Label("Client Time")
+   @Description("The rest of the operation, spent in the client")
+   @Timespan
+   long clientTime;
+
+}//end OperationEvent
@@ -0,0 +1,274 @@
+/*
+ * Parallel export of Orders and ItemStatus
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+
+
+/**
+ * Exports Orders and ItemStatus to compressed columnar files (see
+ * ColumnarFile) for analytics.
+ *
+ * The orderid space is split into ranges and every range is streamed on its
+ * own connection with a cursor, one range per core at a time. All ranges
+ * read the same snapshot, exported by a coordinating transaction. A range
+ * writes orders-<lo>-<hi>.cafecol and itemstatus-<lo>-<hi>.cafecol, and a
+ * file only appears once it is complete, so running the export again skips
+ * the ranges that are already done.
+ *
+ * The first run records the orderid bounds of its snapshot and the ranges in
+ * export.manifest, and a run on a directory with a manifest reuses them, so
+ * the files of every run line up and orders added since are left out. The
+ * ranges a rerun writes are read from a new snapshot within those bounds.
+ *
+ * Every range is admitted as a report before it reads, so only the report
+ * share of the admission limit (see AdmissionControl) reads at once and the
+ * other workers wait, at most -Dcafe.exportWait milliseconds (one hour).
+ */
+public class OrderExport {
+
+   // rows fetched per cursor round trip
+   private static final int FETCH_SIZE = 10000;
+
+   private static final String MANIFEST = "export.manifest";
+
+   private static final String[] ORDER_COLUMNS = { "orderid", "login", "paid", "timeStampRecieved", "total" };
+   private static final byte[] ORDER_TYPES = { ColumnarFile.INT32, ColumnarFile.STRING, ColumnarFile.BOOL,
+                                               ColumnarFile.TIMESTAMP, ColumnarFile.FLOAT64 };
+   private static final String[] ITEM_COLUMNS = { "orderid", "itemName", "lastUpdated", "status", "comments", "quantity" };
+   private static final byte[] ITEM_TYPES = { ColumnarFile.INT32, ColumnarFile.STRING, ColumnarFile.TIMESTAMP,
+                                              ColumnarFile.STRING, ColumnarFile.STRING, ColumnarFile.INT32 };
+
+   private final String _url;
+   private final File _dir;
+   private final AdmissionControl _admission;
+   private final long _admissionWaitMillis;
+
+   public OrderExport (String url, File dir) {
+      this(url, dir, new AdmissionControl());
+   }//end OrderExport
+
+   /**
+    * @param url connection URL of the database
+    * @param dir directory of the export files
+    * @param admission the admission control in front of the database
+    */
+   public OrderExport (String url, File dir, AdmissionControl admission) {
+      this._url = url;
+      this._dir = dir;
+      this._admission = admission;
+      this._admissionWaitMillis = Long.getLong("cafe.exportWait", 3600000);
+   }//end OrderExport
+
+   /**
+    * Exports every order in the given number of ranges
+    *
+    * @param ranges number of orderid ranges
+    * @param threads ranges exported at the same time
+    * @throws java.sql.SQLException when the database could not be read
+    */
+   public void export (int ranges, int threads) throws SQLException {
+      Connection coordinator = DriverManager.getConnection(_url);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         // the coordinator transaction keeps the snapshot alive for the workers
+         coordinator.setAutoCommit(false);
+         coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         Statement stmt = coordinator.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot(), MIN(orderid), MAX(orderid) FROM Orders");
+         rs.next();
+         final String snapshot = rs.getString(1);
+         long min = rs.getLong(2);
+         long max = rs.getLong(3);
+         stmt.close();
+
+         List<long[]> plan = readManifest();
+         if (plan != null) {
+            System.out.println("Resuming the export of orders " + plan.get(0)[0] + " to " +
+                               (plan.get(plan.size() - 1)[1] - 1) + " planned in " + MANIFEST);
+         }
+         else {
+            if (max == 0 && min == 0) {
+               System.out.println("Nothing to export");
+               return;
+            }
+            plan = new ArrayList<long[]>();
+            long span = (max - min) / ranges + 1;
+            for (long lo = min; lo <= max; lo += span)
+               plan.add(new long[] { lo, Math.min(lo + span, max + 1) });
+            writeManifest(min, max, plan);
+         }
+
+         List<Future<String>> done = new ArrayList<Future<String>>();
+         for (long[] range : plan) {
+            final long from = range[0];
+            final long to = range[1];
+            done.add(pool.submit(() -> exportRange(snapshot, from, to)));
+         }
+
+         int failed = 0;
+         for (Future<String> f : done) {
+            try {
+               System.out.println(f.get());
+            }catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return;
+            }catch (ExecutionException e) {
+               System.err.println("Range failed: " + e.getCause().getMessage());
+               ++failed;
+            }
+         }
+         System.out.println("Export done, " + (done.size() - failed) + " of " + done.size() +
+                            " ranges written" + (failed > 0 ? ", run again to retry the rest" : ""));
+      }finally {
+         pool.shutdownNow();
+         coordinator.rollback();
+         coordinator.close();
+      }
+   }//end export
+
+   // the ranges of an earlier run, or null when there was none
+   private List<long[]> readManifest () throws SQLException {
+      File manifest = new File(_dir, MANIFEST);
+      if (!manifest.exists())
+         return null;
+      List<long[]> plan = new ArrayList<long[]>();
+      try {
+         for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].equals("range"))
+               plan.add(new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) });
+         }
+      }catch (IOException | RuntimeException e) {
+         throw new SQLException("Unreadable " + manifest + ": " + e.getMessage());
+      }
+      if (plan.isEmpty())
+         throw new SQLException(manifest + " has no ranges");
+      return plan;
+   }//end readManifest
+
+   // records the plan, the file only appears once it is complete
+   private void writeManifest (long min, long max, List<long[]> plan) throws SQLException {
+      StringBuilder out = new StringBuilder();
+      out.append("# orderid bounds of the first snapshot, then the ranges\n");
+      out.append("orders ").append(min).append(' ').append(max).append('\n');
+      for (long[] range : plan)
+         out.append("range ").append(range[0]).append(' ').append(range[1]).append('\n');
+      File manifest = new File(_dir, MANIFEST);
+      File tmp = new File(_dir, MANIFEST + ".tmp");
+      try {
+         Files.write(tmp.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+         Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }catch (IOException e) {
+         throw new SQLException("Unable to write " + manifest + ": " + e.getMessage());
+      }
+   }//end writeManifest
+
+   // exports one orderid range, skipping files that are already complete
+   private String exportRange (String snapshot, long from, long to) throws SQLException, IOException {
+      File orders = new File(_dir, "orders-" + from + "-" + to + ".cafecol");
+      File items = new File(_dir, "itemstatus-" + from + "-" + to + ".cafecol");
+      if (orders.exists() && items.exists())
+         return "Range " + from + "-" + to + " already exported";
+
+      _admission.acquire(AdmissionControl.Priority.REPORT, _admissionWaitMillis);
+      long admitted = System.nanoTime();
+      Connection c = null;
+      try {
+         c = DriverManager.getConnection(_url);
+         // a cursor is only used inside a transaction
+         c.setAutoCommit(false);
+         Statement stmt = c.createStatement();
+         stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+         stmt.close();
+
+         int orderRows = 0, itemRows = 0;
+         if (!orders.exists())
+            orderRows = write(c, orders, ORDER_COLUMNS, ORDER_TYPES, "Orders", from, to);
+         if (!items.exists())
+            itemRows = write(c, items, ITEM_COLUMNS, ITEM_TYPES, "ItemStatus", from, to);
+         c.rollback();
+         return "Range " + from + "-" + to + ": " + orderRows + " orders, " + itemRows + " items";
+      }finally {
+         _admission.release(AdmissionControl.Priority.REPORT, System.nanoTime() - admitted);
+         if (c != null)
+            c.close();
+      }
+   }//end exportRange
+
+   private int write (Connection c, File target, String[] columns, byte[] types, String table,
+                      long from, long to) throws SQLException, IOException {
+      String query = String.format("SELECT %s FROM %s WHERE orderid >= %d AND orderid < %d ORDER BY orderid",
+                                   String.join(", ", columns), table, from, to);
+      Statement stmt = c.createStatement();
+      stmt.setFetchSize(FETCH_SIZE);
+      ColumnarFile out = new ColumnarFile(target, columns, types);
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         while (rs.next())
+            out.add(rs);
+         out.finish();
+      }catch (SQLException | IOException e) {
+         out.abort();
+         throw e;
+      }finally {
+         stmt.close();
+      }
+      return out.rowCount();
+   }//end write
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <output dir> [<ranges>]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderExport.class.getName () +
+            " <dbname> <port> <output dir> [<ranges>]");
+         return;
+      }//end if
+
+      int threads = Runtime.getRuntime().availableProcessors();
+      // more ranges than cores keeps every core busy until the end
+      int ranges = args.length > 3 ? Integer.parseInt(args[3]) : threads * 4;
+      // every worker may wait for its report slot at the same time
+      if (System.getProperty("cafe.admission.queue.REPORT") == null)
+         System.setProperty("cafe.admission.queue.REPORT", Integer.toString(threads));
+      File dir = new File(args[2]);
+      dir.mkdirs();
+
+      String url = "jdbc:postgresql://127.0.0.1:" + args[1] + "/" + args[0];
+      try {
+         new OrderExport(url, dir).export(ranges, threads);
+      }catch (SQLException e) {
+         System.err.println(e.getMessage());
+      }
+   }//end main
+
+}//end OrderExport
@@ -0,0 +1,81 @@
+/*
+ * Block allocation of order ids (hi/lo)
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * Hands out order ids from blocks reserved on the orders_orderid_seq
+ * sequence. The sequence steps by the block size (INCREMENT BY), so one
+ * nextval reserves the ids [value, value + block) for this process, which
+ * are then given out from memory without a round trip.
+ *
+ * The block size is read from the sequence itself, a sequence still stepping
+ * by 1 simply makes every id cost one nextval.
+ */
+public class OrderIdAllocator {
+
+   // one reserved range, next is only trusted while it is below limit
+   private static class Block {
+      final AtomicLong next;
+      final long limit;
+
+      Block (long start, long size) {
+         next = new AtomicLong(start);
+         limit = start + size;
+      }
+   }//end Block
+
+   private final Cafe _esql;
+   private final String _sequence;
+   private long _blockSize = 0;
+   private volatile Block _block = new Block(0, 0);
+
+   /**
+    * Creates an allocator, no block is reserved until the first id is needed
+    *
+    * @param esql the database holding the sequence
+    * @param sequence name of the sequence, e.g. orders_orderid_seq
+    */
+   public OrderIdAllocator (Cafe esql, String sequence) {
+      this._esql = esql;
+      this._sequence = sequence;
+   }//end OrderIdAllocator
+
+   /**
+    * @return a new order id, unique across every process using the sequence
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public long next () throws SQLException {
+      while (true) {
+         Block block = _block;
+         long id = block.next.getAndIncrement();
+         if (id < block.limit)
+            return id;
+         reserve(block);
+      }
+   }//end next
+
+   // replaces an exhausted block, unless another thread already did
+   private synchronized void reserve (Block exhausted) throws SQLException {
+      if (_block != exhausted)
+         return;
+      if (_blockSize == 0) {
+         String query = String.format("SELECT increment_by FROM pg_sequences WHERE sequencename = '%s'", _sequence);
+         ResultTable increment = _esql.executeQueryAndReturnTable(query);
+         _blockSize = increment.rowCount() > 0 ? Math.max(1, increment.getLong(0, 0)) : 1;
+      }
+      String query = String.format("SELECT nextval('%s')", _sequence);
+      long start = _esql.executeQueryAndReturnTable(query).getLong(0, 0);
+      _block = new Block(start, _blockSize);
+   }//end reserve
+
+}//end OrderIdAllocator
@@ -0,0 +1,458 @@
+/*
+ * Item popularity tracker
+ * =======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+
+/**
+ * Counts ordered items as they stream by, in memory bounded by the number
+ * of users rather than the number of orders.
+ *
+ * Item counts are kept in count-min sketches: one for all time and one per
+ * time window (12 windows of -Dcafe.popularity.windowMinutes, 5 by
+ * default), so "hot now" is the sum of the live windows and old windows are
+ * simply cleared when reused. Each sketch remembers a bounded set of
+ * candidate items the top-K is picked from with a heap.
+ *
+ * Every user gets a space-saving summary of a few counters, which keeps
+ * their most ordered items exactly as long as they order only a few kinds
+ * of items, and approximately (never undercounted) otherwise.
+ *
+ * A database is read once in full, later catch ups only read the orders
+ * the order_status channel (sql/src/status_notify.sql) reported as changed.
+ * The quantities counted of the orders of the last ORDER_HORIZON_MILLIS are
+ * kept, so an order read again only counts what was added since. A changed
+ * order older than that was counted before and is left alone, which misses
+ * orders synced by a register that was offline for longer.
+ */
+public class PopularityTracker {
+
+   private static final int DEPTH = 4;
+   private static final int WIDTH = 2048;
+   private static final int WINDOWS = 12;
+   private static final int MAX_CANDIDATES = 256;
+   private static final int USER_COUNTERS = 8;
+
+   // orders received within this long may still change and are remembered
+   private static final long ORDER_HORIZON_MILLIS = 24 * 3600 * 1000L;
+
+   private static final int CONNECT_TIMEOUT_SECONDS = 10;
+
+   private static final String ITEMS =
+      "SELECT O.orderid, O.login, I.itemName, I.quantity, O.timeStampRecieved, I.lastUpdated " +
+      "FROM ItemStatus I, Orders O WHERE I.orderid = O.orderid ";
+
+   // count-min sketch with the items that may be among the most counted
+   private static class Sketch {
+      final int[][] counts = new int[DEPTH][WIDTH];
+      final Map<String, Integer> candidates = new HashMap<String, Integer>();
+
+      void add (String item, int n) {
+         int estimate = Integer.MAX_VALUE;
+         for (int row = 0; row < DEPTH; ++row) {
+            int col = slot(item, row);
+            counts[row][col] += n;
+            estimate = Math.min(estimate, counts[row][col]);
+         }
+         if (candidates.containsKey(item) || candidates.size() < MAX_CANDIDATES) {
+            candidates.put(item, estimate);
+            return;
+         }
+         // replace the weakest candidate when the new item outgrew it
+         String weakest = null;
+         for (Map.Entry<String, Integer> e : candidates.entrySet())
+            if (weakest == null || e.getValue() < candidates.get(weakest))
+               weakest = e.getKey();
+         if (candidates.get(weakest) < estimate) {
+            candidates.remove(weakest);
+            candidates.put(item, estimate);
+         }
+      }
+
+      int estimate (String item) {
+         int estimate = Integer.MAX_VALUE;
+         for (int row = 0; row < DEPTH; ++row)
+            estimate = Math.min(estimate, counts[row][slot(item, row)]);
+         return estimate;
+      }
+
+      void clear () {
+         for (int[] row : counts)
+            java.util.Arrays.fill(row, 0);
+         candidates.clear();
+      }
+
+      private static int slot (String item, int row) {
+         // murmur3 finalizer over the string hash, one seed per row
+         int h = item.hashCode() ^ (0x9e3779b9 * (row + 1));
+         h ^= h >>> 16;
+         h *= 0x85ebca6b;
+         h ^= h >>> 13;
+         h *= 0xc2b2ae35;
+         h ^= h >>> 16;
+         return (h & 0x7fffffff) % WIDTH;
+      }
+   }//end Sketch
+
+   // space-saving summary of one user's items
+   private static class UserItems {
+      final String[] items = new String[USER_COUNTERS];
+      final int[] counts = new int[USER_COUNTERS];
+
+      void add (String item, int n) {
+         int smallest = 0;
+         for (int i = 0; i < USER_COUNTERS; ++i) {
+            if (item.equals(items[i])) {
+               counts[i] += n;
+               return;
+            }
+            if (items[i] == null) {
+               items[i] = item;
+               counts[i] = n;
+               return;
+            }
+            if (counts[i] < counts[smallest])
+               smallest = i;
+         }
+         // the newcomer inherits the evicted count as its error bound
+         items[smallest] = item;
+         counts[smallest] += n;
+      }
+   }//end UserItems
+
+   // the items counted of a recent order
+   private static class CountedOrder {
+      final long received;
+      final Map<String, Integer> units = new HashMap<String, Integer>();
+
+      CountedOrder (long received) {
+         this.received = received;
+      }
+   }//end CountedOrder
+
+   // what was counted of one database, and the connection listening on it
+   private static class Feed {
+      Connection connection = null;
+      final Map<Integer, CountedOrder> orders = new HashMap<Integer, CountedOrder>();
+   }//end Feed
+
+   /**
+    * An item with its (estimated) count
+    */
+   public static class Count {
+      public final String item;
+      public final int count;
+
+      Count (String item, int count) {
+         this.item = item;
+         this.count = count;
+      }
+   }//end Count
+
+   private final Sketch _allTime = new Sketch();
+   private final Sketch[] _windows = new Sketch[WINDOWS];
+   private final long[] _windowEpoch = new long[WINDOWS];
+   private final long _windowMillis;
+   private final Map<String, UserItems> _users = new HashMap<String, UserItems>();
+   private final Map<String, Feed> _feeds = new HashMap<String, Feed>();
+
+   public PopularityTracker () {
+      this._windowMillis = Long.getLong("cafe.popularity.windowMinutes", 5) * 60000L;
+      for (int i = 0; i < WINDOWS; ++i)
+         _windows[i] = new Sketch();
+   }//end PopularityTracker
+
+   /**
+    * Counts items ordered by a user
+    *
+    * @param login the user who ordered
+    * @param item the item
+    * @param quantity how many
+    * @param when when the order was placed, in epoch millis
+    */
+   public synchronized void record (String login, String item, int quantity, long when) {
+      item = item.trim();
+      _allTime.add(item, quantity);
+
+      // orders older than the live windows only count for all time
+      long epoch = when / _windowMillis;
+      int slot = (int) (epoch % WINDOWS);
+      if (System.currentTimeMillis() / _windowMillis - epoch < WINDOWS && _windowEpoch[slot] <= epoch) {
+         if (_windowEpoch[slot] < epoch) {
+            _windows[slot].clear();
+            _windowEpoch[slot] = epoch;
+         }
+         _windows[slot].add(item, quantity);
+      }
+
+      if (login != null) {
+         login = login.trim();
+         UserItems user = _users.get(login);
+         if (user == null) {
+            user = new UserItems();
+            _users.put(login, user);
+         }
+         user.add(item, quantity);
+      }
+   }//end record
+
+   /**
+    * Counts the orders of a database the tracker has not counted yet: every
+    * order the first time, after that the items added to the orders the
+    * order_status channel reported as changed. When this fails changes may
+    * have been missed, the tracker has to be closed and a new one started.
+    *
+    * @param url the connection URL
+    * @param initSql statements run once on the listening connection, or null
+    * @return the number of item rows read
+    * @throws java.sql.SQLException when the database could not be read
+    */
+   public int catchUp (String url, String initSql) throws SQLException {
+      Feed feed;
+      synchronized (this) {
+         feed = _feeds.get(url);
+         if (feed == null) {
+            feed = new Feed();
+            _feeds.put(url, feed);
+         }
+      }
+      // one catch up per database at a time, the counts stay readable
+      synchronized (feed) {
+         int rows = feed.connection == null ? countAll(feed, url, initSql) : countChanged(feed);
+         long oldest = System.currentTimeMillis() - ORDER_HORIZON_MILLIS;
+         Iterator<CountedOrder> it = feed.orders.values().iterator();
+         while (it.hasNext())
+            if (it.next().received < oldest)
+               it.remove();
+         return rows;
+      }
+   }//end catchUp
+
+   // listens first, then counts every order in one streaming pass; a change
+   // committed in between is read again by the next catch up and counts
+   // nothing, its quantities are already remembered
+   private int countAll (Feed feed, String url, String initSql) throws SQLException {
+      feed.connection = ConnectionPool.connect(url, initSql, CONNECT_TIMEOUT_SECONDS);
+      Connection c = feed.connection;
+      Statement listen = c.createStatement();
+      listen.execute("LISTEN order_status");
+      listen.close();
+
+      long oldest = System.currentTimeMillis() - ORDER_HORIZON_MILLIS;
+      int rows = 0;
+      // the driver only streams with a cursor, inside a transaction
+      c.setAutoCommit(false);
+      PreparedStatement stmt = c.prepareStatement(ITEMS);
+      try {
+         stmt.setFetchSize(10000);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            int orderid = rs.getInt(1);
+            String item = rs.getString(3).trim();
+            int quantity = rs.getInt(4);
+            long received = rs.getTimestamp(5).getTime();
+            record(rs.getString(2), item, quantity, received);
+            if (received >= oldest) {
+               CountedOrder order = feed.orders.get(orderid);
+               if (order == null) {
+                  order = new CountedOrder(received);
+                  feed.orders.put(orderid, order);
+               }
+               order.units.put(item, quantity);
+            }
+            ++rows;
+         }
+      }finally {
+         stmt.close();
+         c.rollback();
+         c.setAutoCommit(true);
+      }
+      return rows;
+   }//end countAll
+
+   // reads the orders notified since the last catch up and counts what was
+   // added to them since they were counted
+   private int countChanged (Feed feed) throws SQLException {
+      Connection c = feed.connection;
+      // the driver collects notifications while it reads from the server
+      Statement poll = c.createStatement();
+      poll.execute("SELECT 1");
+      poll.close();
+      PGNotification[] notifications = c.unwrap(PGConnection.class).getNotifications();
+      if (notifications == null || notifications.length == 0)
+         return 0;
+      Set<Integer> changed = new HashSet<Integer>();
+      for (PGNotification n : notifications) {
+         try {
+            changed.add(Integer.parseInt(n.getParameter().trim()));
+         }catch (NumberFormatException e) {
+            // not an order of ours.
+         }
+      }
+
+      long oldest = System.currentTimeMillis() - ORDER_HORIZON_MILLIS;
+      Map<Integer, Set<String>> seen = new HashMap<Integer, Set<String>>();
+      Set<Integer> fresh = new HashSet<Integer>();
+      int rows = 0;
+      PreparedStatement stmt = c.prepareStatement(ITEMS + "AND O.orderid = ANY(?)");
+      try {
+         stmt.setArray(1, c.createArrayOf("integer", changed.toArray()));
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()) {
+            int orderid = rs.getInt(1);
+            long received = rs.getTimestamp(5).getTime();
+            CountedOrder order = feed.orders.get(orderid);
+            if (order == null) {
+               // an order this old was counted before it was forgotten
+               if (received < oldest)
+                  continue;
+               order = new CountedOrder(received);
+               feed.orders.put(orderid, order);
+               fresh.add(orderid);
+            }
+            String item = rs.getString(3).trim();
+            int quantity = rs.getInt(4);
+            Integer counted = order.units.put(item, quantity);
+            int added = quantity - (counted == null ? 0 : counted);
+            // items of a new order count when it came in, additions when
+            // they were made; removed units stay counted
+            if (added > 0)
+               record(rs.getString(2), item, added, fresh.contains(orderid) ? received : rs.getTimestamp(6).getTime());
+            Set<String> items = seen.get(orderid);
+            if (items == null) {
+               items = new HashSet<String>();
+               seen.put(orderid, items);
+            }
+            items.add(item);
+            ++rows;
+         }
+      }finally {
+         stmt.close();
+      }
+
+      // items taken off and orders deleted are counted again if re-added
+      for (int orderid : changed) {
+         CountedOrder order = feed.orders.get(orderid);
+         if (order == null)
+            continue;
+         Set<String> items = seen.get(orderid);
+         if (items == null)
+            feed.orders.remove(orderid);
+         else
+            order.units.keySet().retainAll(items);
+      }
+      return rows;
+   }//end countChanged
+
+   /**
+    * Method to close the connections the tracker listens on
+    */
+   public void close () {
+      List<Feed> feeds;
+      synchronized (this) {
+         feeds = new ArrayList<Feed>(_feeds.values());
+      }
+      for (Feed feed : feeds) {
+         try {
+            Connection c = feed.connection;
+            if (c != null)
+               c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end close
+
+   /**
+    * @return the minutes covered by the live windows
+    */
+   public long liveMinutes () {
+      return WINDOWS * _windowMillis / 60000L;
+   }//end liveMinutes
+
+   /**
+    * @param k number of items
+    * @return the k most ordered items of all time, most ordered first
+    */
+   public synchronized List<Count> topAllTime (int k) {
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (String item : _allTime.candidates.keySet())
+         counts.put(item, _allTime.estimate(item));
+      return top(counts, k);
+   }//end topAllTime
+
+   /**
+    * @param k number of items
+    * @return the k most ordered items of the live windows, most ordered first
+    */
+   public synchronized List<Count> topNow (int k) {
+      long now = System.currentTimeMillis() / _windowMillis;
+      Set<String> candidates = new HashSet<String>();
+      for (int i = 0; i < WINDOWS; ++i)
+         if (now - _windowEpoch[i] < WINDOWS)
+            candidates.addAll(_windows[i].candidates.keySet());
+
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (String item : candidates) {
+         int sum = 0;
+         for (int i = 0; i < WINDOWS; ++i)
+            if (now - _windowEpoch[i] < WINDOWS)
+               sum += _windows[i].estimate(item);
+         counts.put(item, sum);
+      }
+      return top(counts, k);
+   }//end topNow
+
+   /**
+    * @param login the user
+    * @param n number of items
+    * @return the n items the user ordered most, most ordered first
+    */
+   public synchronized List<Count> topForUser (String login, int n) {
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      UserItems user = _users.get(login.trim());
+      if (user != null)
+         for (int i = 0; i < USER_COUNTERS && user.items[i] != null; ++i)
+            counts.put(user.items[i], user.counts[i]);
+      return top(counts, n);
+   }//end topForUser
+
+   // picks the k largest counts with a min-heap of size k
+   private static List<Count> top (Map<String, Integer> counts, int k) {
+      PriorityQueue<Count> heap = new PriorityQueue<Count>(k + 1, (a, b) -> Integer.compare(a.count, b.count));
+      for (Map.Entry<String, Integer> e : counts.entrySet()) {
+         if (e.getValue() <= 0)
+            continue;
+         heap.add(new Count(e.getKey(), e.getValue()));
+         if (heap.size() > k)
+            heap.poll();
+      }
+      List<Count> result = new ArrayList<Count>(heap);
+      Collections.sort(result, (a, b) -> Integer.compare(b.count, a.count));
+      return result;
+   }//end top
+
+}//end PopularityTracker
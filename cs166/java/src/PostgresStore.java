@@ -0,0 +1,75 @@
+/*
+ * Postgres storage
+ * ================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * The register operations of CafeStore on the Postgres database of a Cafe
+ */
+public class PostgresStore implements CafeStore {
+
+   private final Cafe _esql;
+
+   public PostgresStore (Cafe esql) {
+      this._esql = esql;
+   }//end PostgresStore
+
+   public boolean checkPassword (String login, String password) throws SQLException {
+      String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
+      return _esql.executeQuery(query) > 0;
+   }//end checkPassword
+
+   public String userType (String login) throws SQLException {
+      String query = String.format("SELECT type FROM Users WHERE login = '%s'", login);
+      List<List<String>> tuples = _esql.executeQueryAndReturnResult(query);
+      return tuples.isEmpty() ? null : tuples.get(0).get(0);
+   }//end userType
+
+   public List<List<String>> menu (String orderBy) throws SQLException {
+      String query = String.format("SELECT %s FROM Menu ORDER BY %s", String.join(", ", MENU_COLUMNS), orderBy);
+      ResultTable table = _esql.executeCachedReadQueryAndReturnTable(query);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int row = 0; row < table.rowCount(); ++row) {
+         List<String> record = new ArrayList<String>();
+         for (int col = 0; col < table.columnCount(); ++col)
+            record.add(table.getString(row, col));
+         rows.add(record);
+      }
+      return rows;
+   }//end menu
+
+   public boolean menuHas (String itemName) throws SQLException {
+      String query = String.format("SELECT * FROM Menu WHERE itemName = '%s'", itemName);
+      return _esql.executeQuery(query) > 0;
+   }//end menuHas
+
+   public double orderTotal (Map<String, Integer> quantities) throws SQLException {
+      return Cafe.orderItemsTotal(_esql, quantities);
+   }//end orderTotal
+
+   public int placeOrder (int orderid, String login, boolean paid, Timestamp placedAt, Map<String, Integer> quantities,
+                          Map<String, String> comments, double total) throws SQLException {
+      // the order id is known before anything is inserted
+      if (orderid == 0)
+         orderid = _esql.nextOrderId();
+      String query = String.format("INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) VALUES ('%s','%s','%s','%s','%s')", orderid, login, paid, placedAt, total);
+      // fill itemStatus with one row per item in the order, both inserts go
+      // to the server in one round trip
+      String query2 = Cafe.orderItemsInsert(String.valueOf(orderid), quantities, comments, placedAt);
+      _esql.executeUpdate(query + ";\n" + query2);
+      return orderid;
+   }//end placeOrder
+
+}//end PostgresStore
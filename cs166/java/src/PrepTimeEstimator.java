@@ -0,0 +1,476 @@
+/*
+ * Prep time estimator
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+
+/**
+ * Estimates when open orders will be ready from how long items took before.
+ *
+ * The prep time of an item is the time from the order being received to
+ * the item being completed (ItemStatus.lastUpdated). Prep times are kept in
+ * log bucketed histograms per item, per hour of day and overall, so any
+ * quantile is read from a fixed number of buckets and no history is ever
+ * scanned again. The first refresh reads all of ItemStatus in one streaming
+ * pass, later refreshes only re-read the orders changed since the previous
+ * one, as announced on the order_status channel.
+ *
+ * The estimate of an order is the later of two things: the slowest of its
+ * open items, by the item's median (90th percentile for the upper bound)
+ * scaled to the hour the order came in, and the time the kitchen needs for
+ * the items queued before it at its recent completion rate.
+ */
+public class PrepTimeEstimator {
+
+   // histograms with fewer samples fall back to the overall one
+   private static final int MIN_SAMPLES = 20;
+
+   // open orders older than this were most likely deleted
+   private static final long MAX_OPEN_MILLIS = 12 * 3600 * 1000L;
+
+   // rows fetched per round trip of the first pass
+   private static final int FETCH_SIZE = 10000;
+
+   /**
+    * Streaming histogram over buckets growing by 10%, covering one second
+    * to about three days. Quantiles are within 5% of the true value.
+    */
+   static class LogHistogram {
+      private static final double GROWTH = 1.1;
+      private static final double LOG_GROWTH = Math.log(GROWTH);
+      private final long[] _counts = new long[128];
+      private long _total = 0;
+
+      void add (double seconds) {
+         int bucket = (int) (Math.log(Math.max(seconds, 1.0)) / LOG_GROWTH);
+         ++_counts[Math.min(bucket, _counts.length - 1)];
+         ++_total;
+      }
+
+      long count () {
+         return _total;
+      }
+
+      // geometric middle of the bucket holding the q-quantile
+      double quantile (double q) {
+         long rank = (long) Math.ceil(q * _total);
+         long seen = 0;
+         for (int i = 0; i < _counts.length; ++i) {
+            seen += _counts[i];
+            if (seen >= rank && _counts[i] > 0)
+               return Math.pow(GROWTH, i + 0.5);
+         }
+         return 0;
+      }
+   }//end LogHistogram
+
+   // an order with items still being prepared
+   private static class OpenOrder {
+      final long received;
+      final Map<String, Integer> units = new HashMap<String, Integer>();
+
+      OpenOrder (long received) {
+         this.received = received;
+      }
+   }//end OpenOrder
+
+   // one item status read from the database
+   private static class Change {
+      final int orderid;
+      final String item;
+      final String status;
+      final int quantity;
+      final long updated;
+      final long received;
+
+      Change (ResultSet rs) throws SQLException {
+         this.orderid = rs.getInt(1);
+         this.item = rs.getString(2).trim();
+         // an item without a status is still being prepared
+         String status = rs.getString(3);
+         this.status = status == null ? "" : status.trim();
+         this.quantity = rs.getInt(4);
+         this.updated = rs.getTimestamp(5).getTime();
+         this.received = rs.getTimestamp(6).getTime();
+      }
+   }//end Change
+
+   /**
+    * The histograms and open orders read so far. The first pass builds one
+    * on its own, later refreshes change the current one under the lock of
+    * the estimator.
+    */
+   private static class Model {
+      final LogHistogram all = new LogHistogram();
+      final LogHistogram[] byHour = new LogHistogram[24];
+      final Map<String, LogHistogram> byItem = new HashMap<String, LogHistogram>();
+      final Map<Integer, OpenOrder> open = new HashMap<Integer, OpenOrder>();
+
+      // open units over all orders, and by the minute their order came in
+      long queuedUnits = 0;
+      final Map<Long, Long> unitsByMinute = new HashMap<Long, Long>();
+
+      // units completed in each of the last 60 minutes
+      final long[] minute = new long[60];
+      final int[] completedInMinute = new int[60];
+
+      // set once the first pass is done
+      boolean live = false;
+
+      Model () {
+         for (int h = 0; h < 24; ++h)
+            byHour[h] = new LogHistogram();
+      }
+
+      // applies one changed item status
+      void observe (Change c) {
+         OpenOrder order = open.get(c.orderid);
+         if (!c.status.equals("completed")) {
+            if (order == null) {
+               order = new OpenOrder(c.received);
+               open.put(c.orderid, order);
+            }
+            setUnits(c.orderid, order, c.item, c.quantity);
+            return;
+         }
+
+         // after the first pass only items seen open are counted, so an order
+         // completed again or read again does not add its items a second time
+         Integer units = order == null ? null : order.units.get(c.item);
+         if (units != null)
+            setUnits(c.orderid, order, c.item, 0);
+         else if (live)
+            return;
+
+         double seconds = (c.updated - c.received) / 1000.0;
+         if (seconds < 0)
+            return;
+         all.add(seconds);
+         byHour[hourOf(c.received)].add(seconds);
+         LogHistogram h = byItem.get(c.item);
+         if (h == null) {
+            h = new LogHistogram();
+            byItem.put(c.item, h);
+         }
+         h.add(seconds);
+         completed(c.updated, units == null ? c.quantity : units);
+      }
+
+      // sets the open units of an item, 0 once it is done, and keeps the
+      // queue counters in step
+      void setUnits (int orderid, OpenOrder order, String item, int units) {
+         Integer old = units > 0 ? order.units.put(item, units) : order.units.remove(item);
+         queued(order, units - (old == null ? 0 : old));
+         if (order.units.isEmpty())
+            open.remove(orderid);
+      }
+
+      void queued (OpenOrder order, long delta) {
+         if (delta == 0)
+            return;
+         queuedUnits += delta;
+         long minute = order.received / 60000;
+         Long units = unitsByMinute.get(minute);
+         long left = (units == null ? 0 : units) + delta;
+         if (left == 0)
+            unitsByMinute.remove(minute);
+         else
+            unitsByMinute.put(minute, left);
+      }
+
+      // counts completed units towards the kitchen's recent rate
+      void completed (long when, int units) {
+         long m = when / 60000;
+         if (System.currentTimeMillis() / 60000 - m >= 60)
+            return;
+         int slot = (int) (m % 60);
+         if (minute[slot] != m) {
+            minute[slot] = m;
+            completedInMinute[slot] = 0;
+         }
+         completedInMinute[slot] += units;
+      }
+
+      void expire () {
+         long oldest = System.currentTimeMillis() - MAX_OPEN_MILLIS;
+         Iterator<OpenOrder> it = open.values().iterator();
+         while (it.hasNext()) {
+            OpenOrder order = it.next();
+            if (order.received < oldest) {
+               for (int units : order.units.values())
+                  queued(order, -units);
+               it.remove();
+            }
+         }
+      }
+
+      long[] estimate (int orderid) {
+         OpenOrder order = open.get(orderid);
+         if (order == null || all.count() < MIN_SAMPLES)
+            return null;
+
+         long now = System.currentTimeMillis();
+         double elapsed = (now - order.received) / 1000.0;
+         LogHistogram hour = byHour[hourOf(order.received)];
+         double hourFactor = hour.count() < MIN_SAMPLES ? 1.0 : hour.quantile(0.5) / all.quantile(0.5);
+
+         double typical = 0, slow = 0;
+         for (String item : order.units.keySet()) {
+            LogHistogram h = byItem.get(item);
+            if (h == null || h.count() < MIN_SAMPLES)
+               h = all;
+            typical = Math.max(typical, h.quantile(0.5) * hourFactor - elapsed);
+            slow = Math.max(slow, h.quantile(0.9) * hourFactor - elapsed);
+         }
+
+         // units queued before this order at the rate of the last hour
+         double perSecond = 0;
+         for (int i = 0; i < 60; ++i)
+            if (now / 60000 - minute[i] < 60)
+               perSecond += completedInMinute[i];
+         perSecond /= 3600;
+         if (perSecond > 0) {
+            // everything open but what came in from the minute of this order
+            // on, which takes at most one step per minute of the open window
+            long ahead = queuedUnits;
+            for (Map.Entry<Long, Long> e : unitsByMinute.entrySet())
+               if (e.getKey() >= order.received / 60000)
+                  ahead -= e.getValue();
+            double queued = ahead / perSecond;
+            typical = Math.max(typical, queued);
+            slow = Math.max(slow, queued);
+         }
+         return new long[] { Math.round(Math.max(typical, 0)), Math.round(Math.max(slow, typical)) };
+      }
+   }//end Model
+
+   private static final String ITEMS =
+      "SELECT I.orderid, I.itemName, I.status, I.quantity, I.lastUpdated, O.timeStampRecieved " +
+      "FROM ItemStatus I, Orders O WHERE I.orderid = O.orderid ";
+
+   private final String _url;
+
+   // one refresh at a time, the connection belongs to the refreshing thread
+   private final Object _refreshLock = new Object();
+   private volatile Connection _connection = null;
+
+   // the model estimates are made from, guarded by this
+   private Model _model = null;
+
+   private volatile boolean _ready = false;
+
+   /**
+    * Creates an estimator reading from one database
+    *
+    * @param url the connection URL
+    */
+   public PrepTimeEstimator (String url) {
+      this._url = url;
+   }//end PrepTimeEstimator
+
+   /**
+    * @return true once the history was read and estimates can be made
+    */
+   public boolean isReady () {
+      return _ready;
+   }//end isReady
+
+   /**
+    * Reads the whole history the first time, later only the orders the
+    * order_status channel reported as changed since the previous refresh.
+    * The channel needs sql/src/status_notify.sql. When the connection is
+    * lost notifications may have been missed, the estimator then starts
+    * over and the next refresh reads the history again.
+    *
+    * The database is read without holding the lock estimate takes: the
+    * first pass builds a model of its own and swaps it in when done, later
+    * refreshes only lock to apply the rows they read.
+    *
+    * @throws java.sql.SQLException when the database could not be read
+    */
+   public void refresh () throws SQLException {
+      synchronized (_refreshLock) {
+         try {
+            if (!_ready)
+               bootstrap();
+            else
+               catchUp();
+         }catch (Exception e) {
+            reset();
+            throw e;
+         }
+      }
+   }//end refresh
+
+   // listens first, then reads every item status in one streaming pass
+   private void bootstrap () throws SQLException {
+      _connection = DriverManager.getConnection(_url);
+      // a LISTEN takes effect at commit, a change committed after it is
+      // notified and one committed before is in the pass below
+      Statement listen = _connection.createStatement();
+      listen.execute("LISTEN order_status");
+      listen.close();
+
+      // the driver only streams with a cursor, inside a transaction
+      Model fresh = new Model();
+      _connection.setAutoCommit(false);
+      PreparedStatement stmt = _connection.prepareStatement(ITEMS + "ORDER BY I.lastUpdated");
+      try {
+         stmt.setFetchSize(FETCH_SIZE);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            fresh.observe(new Change(rs));
+         _connection.commit();
+      }finally {
+         stmt.close();
+      }
+      _connection.setAutoCommit(true);
+      fresh.live = true;
+      fresh.expire();
+      synchronized (this) {
+         _model = fresh;
+      }
+      _ready = true;
+   }//end bootstrap
+
+   // re-reads the orders notified since the last refresh; the channel is
+   // fed by the commits of every client, in commit order, so rows written
+   // late or with a skewed clock are not missed
+   private void catchUp () throws SQLException {
+      // the driver collects notifications while it reads from the server
+      Statement poll = _connection.createStatement();
+      poll.execute("SELECT 1");
+      poll.close();
+      PGNotification[] notifications = _connection.unwrap(PGConnection.class).getNotifications();
+      if (notifications == null || notifications.length == 0) {
+         synchronized (this) {
+            _model.expire();
+         }
+         return;
+      }
+      Set<Integer> changed = new HashSet<Integer>();
+      for (PGNotification n : notifications) {
+         try {
+            changed.add(Integer.parseInt(n.getParameter().trim()));
+         }catch (NumberFormatException e) {
+            // not an order of ours.
+         }
+      }
+
+      List<Change> rows = new ArrayList<Change>();
+      PreparedStatement stmt = _connection.prepareStatement(ITEMS + "AND I.orderid = ANY(?) ORDER BY I.lastUpdated");
+      try {
+         stmt.setArray(1, _connection.createArrayOf("integer", changed.toArray()));
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            rows.add(new Change(rs));
+      }finally {
+         stmt.close();
+      }
+
+      synchronized (this) {
+         Map<Integer, Set<String>> seen = new HashMap<Integer, Set<String>>();
+         for (Change c : rows) {
+            Set<String> items = seen.get(c.orderid);
+            if (items == null) {
+               items = new HashSet<String>();
+               seen.put(c.orderid, items);
+            }
+            items.add(c.item);
+            _model.observe(c);
+         }
+
+         // items and orders that were deleted are no longer waited for
+         for (int orderid : changed) {
+            OpenOrder order = _model.open.get(orderid);
+            if (order == null)
+               continue;
+            Set<String> items = seen.get(orderid);
+            for (String item : new ArrayList<String>(order.units.keySet()))
+               if (items == null || !items.contains(item))
+                  _model.setUnits(orderid, order, item, 0);
+         }
+         _model.expire();
+      }
+   }//end catchUp
+
+   // forgets everything, the next refresh reads the history again
+   private void reset () {
+      _ready = false;
+      Connection c = _connection;
+      _connection = null;
+      if (c != null) {
+         try {
+            if (!c.getAutoCommit())
+               c.rollback();
+         }catch (SQLException e) {
+            // the connection is closed below either way
+         }
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+      synchronized (this) {
+         _model = null;
+      }
+   }//end reset
+
+   private static int hourOf (long millis) {
+      Calendar c = Calendar.getInstance();
+      c.setTimeInMillis(millis);
+      return c.get(Calendar.HOUR_OF_DAY);
+   }//end hourOf
+
+   /**
+    * Estimates how long until an order is ready, from the state of the last
+    * refresh
+    *
+    * @param orderid the order
+    * @return the typical and the 90th percentile wait in seconds, or null
+    *         when the order has no open items or there is no history yet
+    */
+   public synchronized long[] estimate (int orderid) {
+      if (_model == null)
+         return null;
+      return _model.estimate(orderid);
+   }//end estimate
+
+   /**
+    * Method to close the estimator's connection
+    */
+   public void close () {
+      Connection c = _connection;
+      try {
+         if (c != null)
+            c.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }//end close
+
+}//end PrepTimeEstimator
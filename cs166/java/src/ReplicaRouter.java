@@ -0,0 +1,245 @@
+/*
+ * Read routing to Postgres hot standbys
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+
+
+/**
+ * Hands out connections to hot standby replicas for read-only queries. The
+ * session reads on one connection per replica, async reads take pooled ones
+ * from pickPool so they run side by side without sharing a connection. A
+ * replica is skipped while its replay lag is above the configured limit or
+ * while it cannot be reached, in which case the caller falls back to the
+ * primary.
+ *
+ * A replica whose last check is stale is probed by the caller that notices,
+ * outside the monitor and within a short timeout, so a hung standby only
+ * holds up that one caller. The lag is the age of the last replayed
+ * transaction. A standby streaming from its primary that has replayed
+ * everything it received is current even when the primary is idle; a
+ * standby that lost its primary is judged by the replay age alone, so it
+ * ages out. The streaming status needs the
+ * pg_read_all_stats role, without it a running WAL receiver counts as
+ * streaming.
+ */
+public class ReplicaRouter {
+
+   // lag of a replica is measured at most this often
+   private static final long LAG_CHECK_MILLIS = 1000;
+
+   // longest time to connect to a replica or to measure its lag
+   private static final int PROBE_TIMEOUT_SECONDS = 2;
+
+   // state kept for one standby
+   private static class Replica {
+      String url;
+      Connection connection;
+      Connection probe;
+      ConnectionPool pool;
+      long checkedAt;
+      boolean healthy;
+      boolean probing;
+   }//end Replica
+
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final double _maxLagSeconds;
+   private final String _initSql;
+   private int _next = 0;
+
+   /**
+    * Creates a router over the given standbys
+    *
+    * @param dbname the name of the database on every replica
+    * @param endpoints replica endpoints as host:port or port
+    * @param maxLagSeconds replay lag above which a replica is not used
+    * @param poolSize the most pooled connections per replica
+    * @param initSql statements run on every pooled connection, or null
+    */
+   public ReplicaRouter (String dbname, String[] endpoints, double maxLagSeconds, int poolSize, String initSql) {
+      for (String endpoint : endpoints) {
+         Replica replica = new Replica();
+         replica.url = CafeShardTool.url(dbname, endpoint);
+         replica.pool = new ConnectionPool(replica.url, poolSize, initSql, PROBE_TIMEOUT_SECONDS);
+         _replicas.add(replica);
+      }
+      this._maxLagSeconds = maxLagSeconds;
+      this._initSql = initSql;
+   }//end ReplicaRouter
+
+   /**
+    * Picks the next healthy replica in round robin order
+    *
+    * @return a replica connection, or null when the primary has to be used
+    */
+   public Connection pick () {
+      Replica replica = next();
+      if (replica == null)
+         return null;
+      synchronized (this) {
+         return replica.connection;
+      }
+   }//end pick
+
+   /**
+    * Picks the next healthy replica like pick, for a caller that takes its
+    * own connection from the replica pool and releases it when done
+    *
+    * @return the pool of a replica, or null when the primary has to be used
+    */
+   public ConnectionPool pickPool () {
+      Replica replica = next();
+      return replica == null ? null : replica.pool;
+   }//end pickPool
+
+   // the next usable replica; a stale one is probed by the caller that
+   // notices, outside the monitor, while the others go by the last result
+   private Replica next () {
+      for (int i = 0; i < _replicas.size(); ++i) {
+         Replica replica;
+         synchronized (this) {
+            replica = _replicas.get(_next);
+            _next = (_next + 1) % _replicas.size();
+            long now = System.currentTimeMillis();
+            if (replica.probing || now - replica.checkedAt < LAG_CHECK_MILLIS) {
+               if (replica.healthy && replica.connection != null)
+                  return replica;
+               continue;
+            }
+            replica.probing = true;
+            replica.checkedAt = now;
+         }
+         if (probe(replica))
+            return replica;
+      }
+      return null;
+   }//end next
+
+   // reconnects and re-measures the lag of a replica, within PROBE_TIMEOUT_SECONDS
+   private boolean probe (Replica replica) {
+      boolean healthy = false;
+      try {
+         if (replica.probe == null || replica.probe.isClosed())
+            replica.probe = ConnectionPool.connect(replica.url, null, PROBE_TIMEOUT_SECONDS);
+
+         // an idle primary does not advance the replay timestamp, so a
+         // streaming standby that has replayed everything it received
+         // counts as current; no replayed transaction yet means unknown lag
+         Statement stmt = replica.probe.createStatement();
+         double lag = Double.MAX_VALUE;
+         try {
+            stmt.setQueryTimeout(PROBE_TIMEOUT_SECONDS);
+            ResultSet rs = stmt.executeQuery(
+               "SELECT CASE WHEN COALESCE((SELECT COALESCE(status = 'streaming', pid IS NOT NULL) FROM pg_stat_wal_receiver), false) " +
+               "AND pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+               "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END");
+            if (rs.next()) {
+               lag = rs.getDouble(1);
+               if (rs.wasNull())
+                  lag = Double.MAX_VALUE;
+            }
+         }finally {
+            stmt.close();
+         }
+         healthy = lag <= _maxLagSeconds;
+
+         // the session connection gets the same session limits as the pools
+         boolean missing;
+         synchronized (this) {
+            missing = replica.connection == null || replica.connection.isClosed();
+         }
+         if (healthy && missing) {
+            Connection c = ConnectionPool.connect(replica.url, _initSql, PROBE_TIMEOUT_SECONDS);
+            synchronized (this) {
+               replica.connection = c;
+            }
+         }
+      }catch (SQLException e) {
+         System.err.println("Replica " + replica.url + " unavailable: " + e.getMessage());
+         healthy = false;
+         closeProbe(replica);
+      }
+      synchronized (this) {
+         replica.healthy = healthy;
+         replica.probing = false;
+         if (!healthy)
+            close(replica);
+      }
+      return healthy;
+   }//end probe
+
+   /**
+    * Marks the replica owning the given connection as unusable until the
+    * next lag check, after a query on it failed.
+    *
+    * @param connection the connection that failed
+    */
+   public synchronized void markFailed (Connection connection) {
+      for (Replica replica : _replicas) {
+         if (replica.connection == connection) {
+            replica.healthy = false;
+            replica.checkedAt = System.currentTimeMillis();
+            close(replica);
+         }
+      }
+   }//end markFailed
+
+   /**
+    * Same as markFailed for a query on a pooled connection of the replica
+    *
+    * @param pool the pool the failed connection came from
+    */
+   public synchronized void markFailed (ConnectionPool pool) {
+      for (Replica replica : _replicas) {
+         if (replica.pool == pool) {
+            replica.healthy = false;
+            replica.checkedAt = System.currentTimeMillis();
+            close(replica);
+         }
+      }
+   }//end markFailed
+
+   private void close (Replica replica) {
+      try {
+         if (replica.connection != null)
+            replica.connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      replica.connection = null;
+      replica.pool.closeIdle();
+   }//end close
+
+   private static void closeProbe (Replica replica) {
+      try {
+         if (replica.probe != null)
+            replica.probe.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      replica.probe = null;
+   }//end closeProbe
+
+   /**
+    * Method to close every replica connection.
+    */
+   public synchronized void cleanup () {
+      for (Replica replica : _replicas) {
+         close(replica);
+         closeProbe(replica);
+         replica.pool.close();
+      }
+   }//end cleanup
+
+}//end ReplicaRouter
@@ -0,0 +1,305 @@
+/*
+ * Typed, column oriented query result
+ * ===================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+
+
+/**
+ * Holds a query result column by column in primitive arrays, so values keep
+ * their SQL type and need no parsing. Integer and boolean columns are stored
+ * as int[], bigint and timestamp columns as long[] (timestamps in epoch
+ * milliseconds), numeric columns as double[] and every other column as
+ * dictionary encoded strings. Rows and columns are numbered from 0.
+ */
+public class ResultTable {
+
+   // storage kinds of a column
+   private static final int INT = 0;
+   private static final int LONG = 1;
+   private static final int DOUBLE = 2;
+   private static final int TIMESTAMP = 3;
+   private static final int BOOLEAN = 4;
+   private static final int STRING = 5;
+
+   // one column, only the array matching its kind is allocated
+   private static class Column {
+      String name;
+      int kind;
+      int[] ints;
+      long[] longs;
+      double[] doubles;
+      BitSet nulls = new BitSet();
+      // dictionary of a STRING column, ints holds the codes
+      List<String> dict;
+      Map<String, Integer> codes;
+   }//end Column
+
+   private final Column[] _columns;
+   private int _rowCount = 0;
+   private int _capacity = 16;
+
+   private ResultTable (ResultSetMetaData rsmd) throws SQLException {
+      _columns = new Column[rsmd.getColumnCount()];
+      for (int i = 0; i < _columns.length; ++i) {
+         Column c = new Column();
+         c.name = rsmd.getColumnName(i + 1);
+         c.kind = kindOf(rsmd.getColumnType(i + 1));
+         switch (c.kind) {
+            case INT: case BOOLEAN: c.ints = new int[_capacity]; break;
+            case LONG: case TIMESTAMP: c.longs = new long[_capacity]; break;
+            case DOUBLE: c.doubles = new double[_capacity]; break;
+            default:
+               c.ints = new int[_capacity];
+               c.dict = new ArrayList<String>();
+               c.codes = new HashMap<String, Integer>();
+               break;
+         }
+         _columns[i] = c;
+      }
+   }//end ResultTable
+
+   private static int kindOf (int sqlType) {
+      switch (sqlType) {
+         case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT: return INT;
+         case Types.BIGINT: return LONG;
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+         case Types.NUMERIC: case Types.DECIMAL: return DOUBLE;
+         case Types.TIMESTAMP: case Types.TIMESTAMP_WITH_TIMEZONE: case Types.DATE: return TIMESTAMP;
+         case Types.BOOLEAN: case Types.BIT: return BOOLEAN;
+         default: return STRING;
+      }
+   }//end kindOf
+
+   /**
+    * Reads every row of a result set into a new table
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the table holding the rows
+    * @throws java.sql.SQLException when reading the result set failed
+    */
+   public static ResultTable from (ResultSet rs) throws SQLException {
+      ResultTable table = new ResultTable(rs.getMetaData());
+      while (rs.next())
+         table.append(rs);
+      return table;
+   }//end from
+
+   // copies the current row of the result set
+   private void append (ResultSet rs) throws SQLException {
+      if (_rowCount == _capacity)
+         grow();
+      int row = _rowCount++;
+      for (int i = 0; i < _columns.length; ++i) {
+         Column c = _columns[i];
+         switch (c.kind) {
+            case INT: c.ints[row] = rs.getInt(i + 1); break;
+            case BOOLEAN: c.ints[row] = rs.getBoolean(i + 1) ? 1 : 0; break;
+            case LONG: c.longs[row] = rs.getLong(i + 1); break;
+            case DOUBLE: c.doubles[row] = rs.getDouble(i + 1); break;
+            case TIMESTAMP:
+               Timestamp ts = rs.getTimestamp(i + 1);
+               c.longs[row] = ts == null ? 0 : ts.getTime();
+               break;
+            default:
+               String value = rs.getString(i + 1);
+               if (value != null) {
+                  Integer code = c.codes.get(value);
+                  if (code == null) {
+                     code = c.dict.size();
+                     c.dict.add(value);
+                     c.codes.put(value, code);
+                  }
+                  c.ints[row] = code;
+               }
+               break;
+         }
+         if (rs.wasNull())
+            c.nulls.set(row);
+      }
+   }//end append
+
+   private void grow () {
+      _capacity *= 2;
+      for (Column c : _columns) {
+         if (c.ints != null) c.ints = Arrays.copyOf(c.ints, _capacity);
+         if (c.longs != null) c.longs = Arrays.copyOf(c.longs, _capacity);
+         if (c.doubles != null) c.doubles = Arrays.copyOf(c.doubles, _capacity);
+      }
+   }//end grow
+
+   /**
+    * @return the number of rows
+    */
+   public int rowCount () {
+      return _rowCount;
+   }//end rowCount
+
+   /**
+    * @return the number of columns
+    */
+   public int columnCount () {
+      return _columns.length;
+   }//end columnCount
+
+   /**
+    * @param col the column number
+    * @return the column name reported by the database
+    */
+   public String columnName (int col) {
+      return _columns[col].name;
+   }//end columnName
+
+   /**
+    * @return true when the value is SQL NULL
+    */
+   public boolean isNull (int row, int col) {
+      checkRow(row);
+      return _columns[col].nulls.get(row);
+   }//end isNull
+
+   /**
+    * @return the value of an integer or boolean column
+    */
+   public int getInt (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.kind == LONG) return (int) c.longs[row];
+      if (c.kind == DOUBLE) return (int) c.doubles[row];
+      if (c.kind != INT && c.kind != BOOLEAN)
+         throw new IllegalArgumentException("Column " + c.name + " is not numeric");
+      return c.ints[row];
+   }//end getInt
+
+   /**
+    * @return the value of an integer, bigint or timestamp column
+    */
+   public long getLong (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.kind == INT) return c.ints[row];
+      if (c.kind == DOUBLE) return (long) c.doubles[row];
+      if (c.kind != LONG && c.kind != TIMESTAMP)
+         throw new IllegalArgumentException("Column " + c.name + " is not numeric");
+      return c.longs[row];
+   }//end getLong
+
+   /**
+    * @return the value of a numeric column
+    */
+   public double getDouble (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.kind == INT) return c.ints[row];
+      if (c.kind == LONG) return c.longs[row];
+      if (c.kind != DOUBLE)
+         throw new IllegalArgumentException("Column " + c.name + " is not numeric");
+      return c.doubles[row];
+   }//end getDouble
+
+   /**
+    * @return the value of a boolean column
+    */
+   public boolean getBoolean (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.kind != BOOLEAN)
+         throw new IllegalArgumentException("Column " + c.name + " is not boolean");
+      return c.ints[row] != 0;
+   }//end getBoolean
+
+   /**
+    * @return the value of a timestamp column, null for SQL NULL
+    */
+   public Timestamp getTimestamp (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.kind != TIMESTAMP)
+         throw new IllegalArgumentException("Column " + c.name + " is not a timestamp");
+      return c.nulls.get(row) ? null : new Timestamp(c.longs[row]);
+   }//end getTimestamp
+
+   /**
+    * @return the value of any column as text, null for SQL NULL
+    */
+   public String getString (int row, int col) {
+      checkRow(row);
+      Column c = _columns[col];
+      if (c.nulls.get(row))
+         return null;
+      switch (c.kind) {
+         case INT: return Integer.toString(c.ints[row]);
+         case BOOLEAN: return c.ints[row] != 0 ? "t" : "f";
+         case LONG: return Long.toString(c.longs[row]);
+         case DOUBLE: return Double.toString(c.doubles[row]);
+         case TIMESTAMP: return new Timestamp(c.longs[row]).toString();
+         default: return c.dict.get(c.ints[row]);
+      }
+   }//end getString
+
+   /**
+    * @return the approximate heap size of the values, in bytes
+    */
+   public long byteSize () {
+      long bytes = 0;
+      for (Column c : _columns) {
+         bytes += (long) _rowCount * (c.longs != null || c.doubles != null ? 8 : 4);
+         if (c.dict != null)
+            for (String value : c.dict)
+               bytes += 2L * value.length();
+      }
+      return bytes;
+   }//end byteSize
+
+   /**
+    * @return the sum of a numeric column over every row, NULLs count as 0
+    */
+   public double sum (int col) {
+      double total = 0;
+      for (int row = 0; row < _rowCount; ++row)
+         total += getDouble(row, col);
+      return total;
+   }//end sum
+
+   /**
+    * Prints the table to standard out in the layout used by
+    * Cafe.executeQueryAndPrintResult.
+    *
+    * @return the number of rows printed
+    */
+   public int print () {
+      if (_rowCount > 0) {
+         for (Column c : _columns)
+            System.out.print(c.name + "\t");
+         System.out.println();
+      }
+      for (int row = 0; row < _rowCount; ++row) {
+         for (int col = 0; col < _columns.length; ++col)
+            System.out.print(getString(row, col) + "\t");
+         System.out.println();
+      }
+      return _rowCount;
+   }//end print
+
+   private void checkRow (int row) {
+      if (row < 0 || row >= _rowCount)
+         throw new IndexOutOfBoundsException("Row " + row + " of " + _rowCount);
+   }//end checkRow
+
+}//end ResultTable
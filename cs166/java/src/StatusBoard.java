@@ -0,0 +1,367 @@
+/*
+ * Customer facing order status board
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+
+
+/**
+ * Keeps the state of every active order in memory and pushes changes to
+ * lobby displays and apps over Server-Sent Events.
+ *
+ * The board holds a single database connection that LISTENs on the
+ * order_status channel (see sql/src/status_notify.sql). A notification only
+ * carries an orderid, the board re-reads those orders once and fans the new
+ * state out to every subscriber, so N watchers cost one subscription
+ * instead of N polling queries.
+ *
+ *   GET /status             every active order, then every change
+ *   GET /status?order=<id>  the same, for one order only
+ *
+ * An order stays on the board until all of its items are completed.
+ */
+public class StatusBoard {
+
+   // most events waiting for one subscriber before it is dropped as too slow
+   private static final int MAX_BACKLOG = 1000;
+
+   // one connected client
+   private class Subscriber {
+      final HttpExchange exchange;
+      final OutputStream out;
+      final String orderid;
+      final ConcurrentLinkedQueue<byte[]> backlog = new ConcurrentLinkedQueue<byte[]>();
+      final AtomicInteger backlogSize = new AtomicInteger();
+      final AtomicBoolean draining = new AtomicBoolean();
+      volatile boolean closed = false;
+
+      Subscriber (HttpExchange exchange, String orderid) {
+         this.exchange = exchange;
+         this.out = exchange.getResponseBody();
+         this.orderid = orderid;
+      }
+
+      // queues an event and makes sure a writer thread sends it
+      void send (byte[] event) {
+         if (closed)
+            return;
+         if (backlogSize.incrementAndGet() > MAX_BACKLOG) {
+            close();
+            return;
+         }
+         backlog.add(event);
+         if (draining.compareAndSet(false, true))
+            _writers.execute(this::drain);
+      }
+
+      private void drain () {
+         while (true) {
+            byte[] event;
+            while ((event = backlog.poll()) != null) {
+               backlogSize.decrementAndGet();
+               try {
+                  out.write(event);
+               }catch (IOException e) {
+                  close();
+                  return;
+               }
+            }
+            try {
+               out.flush();
+            }catch (IOException e) {
+               close();
+               return;
+            }
+            draining.set(false);
+            // an event may have arrived after the last poll
+            if (backlog.isEmpty() || !draining.compareAndSet(false, true))
+               return;
+         }
+      }
+
+      void close () {
+         if (closed)
+            return;
+         closed = true;
+         _subscribers.remove(this);
+         exchange.close();
+      }
+   }//end Subscriber
+
+   private final String _url;
+   private final Map<String, String> _orders = new ConcurrentHashMap<String, String>();
+   private final Set<Subscriber> _subscribers = ConcurrentHashMap.newKeySet();
+   // orders changes of _orders and their events against new subscribers
+   private final Object _publishLock = new Object();
+   private final ExecutorService _writers;
+
+   /**
+    * Creates a board for one database
+    *
+    * @param url the connection URL
+    * @param writerThreads threads writing events to subscribers
+    */
+   public StatusBoard (String url, int writerThreads) {
+      this._url = url;
+      this._writers = Executors.newFixedThreadPool(writerThreads, r -> {
+         Thread t = new Thread(r, "statusboard-writer");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end StatusBoard
+
+   /**
+    * Starts serving subscribers over HTTP
+    *
+    * @param port the HTTP port
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public void serve (int port) throws IOException {
+      HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+      server.createContext("/status", this::subscribe);
+      server.setExecutor(Executors.newFixedThreadPool(4));
+      server.start();
+   }//end serve
+
+   // opens an event stream, the exchange stays open after the handler returns
+   private void subscribe (HttpExchange exchange) throws IOException {
+      String query = exchange.getRequestURI().getQuery();
+      String orderid = null;
+      if (query != null && query.startsWith("order="))
+         orderid = query.substring("order=".length());
+
+      exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+      exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+      exchange.sendResponseHeaders(200, 0);
+
+      Subscriber s = new Subscriber(exchange, orderid);
+      // the current state first, later changes follow as they happen; send
+      // only queues, so holding the lock keeps a change from being published
+      // between the snapshot and the registration
+      synchronized (_publishLock) {
+         _subscribers.add(s);
+         for (Map.Entry<String, String> e : _orders.entrySet()) {
+            if (orderid == null || orderid.equals(e.getKey()))
+               s.send(event("order", e.getValue()));
+         }
+      }
+   }//end subscribe
+
+   // formats one Server-Sent Event
+   private static byte[] event (String type, String data) {
+      return ("event: " + type + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+   }//end event
+
+   private void publish (String orderid, String type, String data) {
+      byte[] event = event(type, data);
+      for (Subscriber s : _subscribers) {
+         if (s.orderid == null || s.orderid.equals(orderid))
+            s.send(event);
+      }
+   }//end publish
+
+   /**
+    * Follows the order_status channel forever, reconnecting when the
+    * database connection is lost.
+    */
+   public void run () {
+      while (true) {
+         try {
+            Connection c = DriverManager.getConnection(_url);
+            try {
+               follow(c);
+            }finally {
+               c.close();
+            }
+         }catch (SQLException e) {
+            System.err.println("Status board lost the database: " + e.getMessage());
+         }
+         try {
+            Thread.sleep(1000);
+         }catch (InterruptedException e) {
+            return;
+         }
+      }
+   }//end run
+
+   private void follow (Connection c) throws SQLException {
+      Statement stmt = c.createStatement();
+      // listen before loading so no change between the two is missed
+      stmt.execute("LISTEN order_status");
+      stmt.close();
+      refresh(c, null);
+
+      PGConnection pg = c.unwrap(PGConnection.class);
+      long lastHeartbeat = System.currentTimeMillis();
+      while (true) {
+         PGNotification[] notifications = pg.getNotifications(5000);
+         if (notifications != null && notifications.length > 0) {
+            // a burst of changes is read back with one query
+            Set<String> changed = new TreeSet<String>();
+            for (PGNotification n : notifications)
+               changed.add(n.getParameter());
+            refresh(c, changed);
+         }
+         if (System.currentTimeMillis() - lastHeartbeat > 15000) {
+            // keeps idle connections from being closed by proxies
+            byte[] heartbeat = ":\n\n".getBytes(StandardCharsets.UTF_8);
+            for (Subscriber s : _subscribers)
+               s.send(heartbeat);
+            lastHeartbeat = System.currentTimeMillis();
+         }
+      }
+   }//end follow
+
+   /**
+    * Re-reads the given orders, or every active order when orderids is
+    * null, and publishes what changed.
+    */
+   private void refresh (Connection c, Set<String> orderids) throws SQLException {
+      String where;
+      if (orderids == null) {
+         where = "O.orderid IN (SELECT orderid FROM ItemStatus WHERE status <> 'completed')";
+      }
+      else {
+         StringBuilder ids = new StringBuilder();
+         for (String id : orderids)
+            ids.append(ids.length() > 0 ? ", " : "").append(Integer.parseInt(id.trim()));
+         where = "O.orderid IN (" + ids + ")";
+      }
+      String query = "SELECT O.orderid, O.paid, I.itemName, I.status, I.quantity " +
+                     "FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid " +
+                     "WHERE " + where + " ORDER BY O.orderid";
+
+      Map<String, StringBuilder> states = new LinkedHashMap<String, StringBuilder>();
+      Map<String, Boolean> active = new LinkedHashMap<String, Boolean>();
+      Statement stmt = c.createStatement();
+      ResultSet rs = stmt.executeQuery(query);
+      while (rs.next()) {
+         String orderid = rs.getString(1).trim();
+         StringBuilder state = states.get(orderid);
+         if (state == null) {
+            state = new StringBuilder();
+            state.append("{\"orderid\":").append(orderid)
+                 .append(",\"paid\":").append(rs.getBoolean(2))
+                 .append(",\"items\":[");
+            states.put(orderid, state);
+            active.put(orderid, false);
+         }
+         String item = rs.getString(3);
+         if (item == null)
+            continue;
+         String status = rs.getString(4).trim();
+         if (state.charAt(state.length() - 1) != '[')
+            state.append(',');
+         state.append("{\"item\":\"").append(json(item.trim()))
+              .append("\",\"status\":\"").append(json(status))
+              .append("\",\"quantity\":").append(rs.getInt(5)).append('}');
+         if (!status.equals("completed"))
+            active.put(orderid, true);
+      }
+      stmt.close();
+
+      synchronized (_publishLock) {
+         for (Map.Entry<String, StringBuilder> e : states.entrySet()) {
+            String orderid = e.getKey();
+            String state = e.getValue().append("]}").toString();
+            if (state.equals(_orders.get(orderid)))
+               continue;
+            if (active.get(orderid))
+               _orders.put(orderid, state);
+            else
+               _orders.remove(orderid);
+            publish(orderid, "order", state);
+         }
+
+         // orders that were deleted; a full refresh, e.g. after a reconnect,
+         // only reads active orders, so every other order on the board was
+         // completed or deleted while nobody listened
+         Set<String> gone = new TreeSet<String>();
+         if (orderids != null) {
+            for (String id : orderids)
+               gone.add(id.trim());
+         }
+         else {
+            gone.addAll(_orders.keySet());
+         }
+         for (String orderid : gone) {
+            if (!states.containsKey(orderid) && _orders.remove(orderid) != null)
+               publish(orderid, "removed", "{\"orderid\":" + orderid + "}");
+         }
+      }
+   }//end refresh
+
+   // escapes a JSON string value; control characters are escaped too, a raw
+   // line break would end the data line of the event
+   private static String json (String s) {
+      StringBuilder out = new StringBuilder(s.length());
+      for (int i = 0; i < s.length(); ++i) {
+         char ch = s.charAt(i);
+         if (ch == '"' || ch == '\\')
+            out.append('\\').append(ch);
+         else if (ch < 0x20)
+            out.append(String.format("\\u%04x", (int) ch));
+         else
+            out.append(ch);
+      }
+      return out.toString();
+   }//end json
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <http port>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            StatusBoard.class.getName () +
+            " <dbname> <port> <http port>");
+         return;
+      }//end if
+
+      String url = "jdbc:postgresql://127.0.0.1:" + args[1] + "/" + args[0];
+      StatusBoard board = new StatusBoard(url, Integer.parseInt(System.getProperty("cafe.boardWriters", "8")));
+      try {
+         board.serve(Integer.parseInt(args[2]));
+      }catch (IOException e) {
+         System.err.println("Unable to start the status board: " + e.getMessage());
+         return;
+      }
+      System.out.println("Status board on http://localhost:" + args[2] + "/status");
+      board.run();
+   }//end main
+
+}//end StatusBoard
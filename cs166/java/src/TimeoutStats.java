@@ -0,0 +1,83 @@
+/*
+ * Timeout and cancellation counters
+ * =================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+
+
+/**
+ * Counts statements that ran out of time. The counters are exported over
+ * JMX as cafe:type=Timeouts, so they can be watched with jconsole or any JMX
+ * collector while registers are running.
+ */
+public class TimeoutStats {
+
+   /**
+    * Attributes exported over JMX
+    */
+   public interface View {
+      long getDeadlineExceeded ();
+      long getLockTimeouts ();
+      long getCancellations ();
+      long getCacheFallbacks ();
+   }//end View
+
+   private static final AtomicLong _deadlineExceeded = new AtomicLong();
+   private static final AtomicLong _lockTimeouts = new AtomicLong();
+   private static final AtomicLong _cancellations = new AtomicLong();
+   private static final AtomicLong _cacheFallbacks = new AtomicLong();
+   private static boolean _registered = false;
+
+   /**
+    * Registers the JMX view once per process
+    */
+   public static synchronized void register () {
+      if (_registered)
+         return;
+      _registered = true;
+      try {
+         View view = new View() {
+            public long getDeadlineExceeded () { return _deadlineExceeded.get(); }
+            public long getLockTimeouts () { return _lockTimeouts.get(); }
+            public long getCancellations () { return _cancellations.get(); }
+            public long getCacheFallbacks () { return _cacheFallbacks.get(); }
+         };
+         ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(view, View.class), new ObjectName("cafe:type=Timeouts"));
+      }catch (Exception e) {
+         System.err.println("Unable to export timeout counters: " + e.getMessage());
+      }
+   }//end register
+
+   // a statement, or the operation it belonged to, ran past its deadline
+   public static void deadlineExceeded () { _deadlineExceeded.incrementAndGet(); }
+
+   // a statement gave up waiting for a lock (lock_timeout)
+   public static void lockTimeout () { _lockTimeouts.incrementAndGet(); }
+
+   // a running statement was cancelled at its deadline
+   public static void cancelled () { _cancellations.incrementAndGet(); }
+
+   // cached data was shown because the database did not answer in time
+   public static void cacheFallback () { _cacheFallbacks.incrementAndGet(); }
+
+   /**
+    * @return one line with every counter, empty when nothing timed out
+    */
+   public static String summary () {
+      if (_deadlineExceeded.get() + _lockTimeouts.get() + _cancellations.get() + _cacheFallbacks.get() == 0)
+         return "";
+      return "Timeouts: " + _deadlineExceeded.get() + " deadline exceeded, " + _lockTimeouts.get() +
+             " lock timeouts, " + _cancellations.get() + " cancelled, " + _cacheFallbacks.get() + " cache fallbacks";
+   }//end summary
+
+}//end TimeoutStats
@@ -0,0 +1,287 @@
+/*
+ * Bulk user import
+ * ================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * Creates and updates users from a file in the format of data/users.csv:
+ *
+ *   login;phoneNum;password;favItems;type
+ *
+ * Every line is a full user record. A new login is created, an existing one
+ * gets all its columns replaced. An empty phone number is stored as NULL.
+ *
+ * The file is streamed and applied in chunks of -Dcafe.importChunk rows
+ * (1000 by default), each chunk a batch of upserts in one transaction on
+ * the user's shard. When a chunk fails it is rolled back and its rows are
+ * applied one at a time, so one bad row only rejects itself. Rejected rows
+ * are reported with their line number.
+ *
+ * Run from the cafe, every chunk is first admitted as a report by the
+ * admission control of its shard, waiting at most -Dcafe.importWait
+ * milliseconds (30000), so an import yields to order entry between chunks.
+ */
+public class UserImport {
+
+   private static final String UPSERT =
+      "INSERT INTO Users (login, phoneNum, password, favItems, type) VALUES (?, ?, ?, ?, ?) " +
+      "ON CONFLICT (login) DO UPDATE SET phoneNum = EXCLUDED.phoneNum, password = EXCLUDED.password, " +
+      "favItems = EXCLUDED.favItems, type = EXCLUDED.type";
+
+   // one parsed line waiting in a chunk
+   private static class Row {
+      final int line;
+      final String[] fields;
+
+      Row (int line, String[] fields) {
+         this.line = line;
+         this.fields = fields;
+      }
+   }//end Row
+
+   private final Connection[] _shards;
+   private final AdmissionControl[] _admission;
+   private final long _admissionWaitMillis;
+   private final List<List<Row>> _chunks = new ArrayList<List<Row>>();
+   private final int _chunkSize;
+   private int _applied = 0;
+   private int _rejected = 0;
+
+   /**
+    * Opens one connection per shard
+    *
+    * @param urls connection URLs in shard number order
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public UserImport (String[] urls) throws SQLException {
+      this(urls, null);
+   }//end UserImport
+
+   /**
+    * Opens one connection per shard, chunks are admitted by the shard's
+    * admission control
+    *
+    * @param urls connection URLs in shard number order
+    * @param admission admission control of each shard, null when standalone
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public UserImport (String[] urls, AdmissionControl[] admission) throws SQLException {
+      this._chunkSize = Integer.getInteger("cafe.importChunk", 1000);
+      this._admission = admission;
+      this._admissionWaitMillis = Long.getLong("cafe.importWait", 30000);
+      this._shards = new Connection[urls.length];
+      for (int i = 0; i < urls.length; ++i) {
+         _shards[i] = DriverManager.getConnection(urls[i]);
+         _chunks.add(new ArrayList<Row>());
+      }
+   }//end UserImport
+
+   /**
+    * Applies every line of a file
+    *
+    * @param file the file to read
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public void run (String file) throws IOException, SQLException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         String text;
+         int line = 0;
+         while ((text = reader.readLine()) != null) {
+            ++line;
+            if (text.trim().isEmpty())
+               continue;
+            String[] fields = text.split(";", -1);
+            String problem = validate(fields);
+            if (problem != null) {
+               reject(line, problem);
+               continue;
+            }
+            int shard = CafeShards.shardOf(fields[0], _shards.length);
+            List<Row> chunk = _chunks.get(shard);
+            chunk.add(new Row(line, fields));
+            if (chunk.size() >= _chunkSize)
+               flush(shard);
+         }
+         for (int shard = 0; shard < _shards.length; ++shard)
+            flush(shard);
+      }finally {
+         reader.close();
+      }
+      System.out.println("Import done, " + _applied + " users created or updated, " + _rejected + " rejected");
+   }//end run
+
+   // checks a line against the Users columns before it reaches the database
+   private static String validate (String[] fields) {
+      if (fields.length != 5)
+         return "expected 5 fields separated by ';', found " + fields.length;
+      if (fields[0].trim().isEmpty())
+         return "login is empty";
+      if (fields[2].isEmpty())
+         return "password is empty";
+      if (fields[0].length() > 50 || fields[2].length() > 50)
+         return "login and password are limited to 50 characters";
+      if (fields[1].length() > 16)
+         return "phone number is limited to 16 characters";
+      if (fields[3].length() > 400)
+         return "favorite items are limited to 400 characters";
+      switch (fields[4].trim()) {
+         case "Customer":
+         case "Employee":
+         case "Manager":
+            return null;
+         default:
+            return "type must be Customer, Employee or Manager";
+      }
+   }//end validate
+
+   private void reject (int line, String problem) {
+      ++_rejected;
+      System.err.println("line " + line + ": " + problem);
+   }//end reject
+
+   // applies a shard's chunk in one transaction, row by row if that fails
+   private void flush (int shard) throws SQLException {
+      List<Row> chunk = _chunks.get(shard);
+      if (chunk.isEmpty())
+         return;
+      AdmissionControl admission = _admission != null ? _admission[shard] : null;
+      long admitted = 0;
+      if (admission != null) {
+         long waiting = Operation.connectionWaitStart();
+         try {
+            admission.acquire(AdmissionControl.Priority.REPORT, _admissionWaitMillis);
+         }finally {
+            Operation.connectionWaitEnd(waiting);
+         }
+         admitted = System.nanoTime();
+      }
+      long started = Operation.databaseStart();
+      Connection c = _shards[shard];
+      try {
+         c.setAutoCommit(false);
+         PreparedStatement stmt = c.prepareStatement(UPSERT);
+         try {
+            for (Row row : chunk) {
+               bind(stmt, row);
+               stmt.addBatch();
+            }
+            stmt.executeBatch();
+         }finally {
+            stmt.close();
+         }
+         c.commit();
+         _applied += chunk.size();
+      }catch (SQLException e) {
+         try {
+            c.rollback();
+         }catch (SQLException ignored) {
+            // the connection is reported broken by the row by row pass
+         }
+         applyOneByOne(c, chunk);
+      }finally {
+         try {
+            c.setAutoCommit(true);
+         }catch (SQLException ignored) {
+            // ignored.
+         }
+         Operation.databaseEnd(started);
+         if (admission != null)
+            admission.release(AdmissionControl.Priority.REPORT, System.nanoTime() - admitted);
+      }
+      chunk.clear();
+   }//end flush
+
+   private void applyOneByOne (Connection c, List<Row> chunk) {
+      for (Row row : chunk) {
+         try {
+            c.setAutoCommit(true);
+            PreparedStatement stmt = c.prepareStatement(UPSERT);
+            try {
+               bind(stmt, row);
+               stmt.executeUpdate();
+            }finally {
+               stmt.close();
+            }
+            ++_applied;
+         }catch (SQLException e) {
+            reject(row.line, e.getMessage());
+         }
+      }
+   }//end applyOneByOne
+
+   private static void bind (PreparedStatement stmt, Row row) throws SQLException {
+      String[] f = row.fields;
+      stmt.setString(1, f[0].trim());
+      if (f[1].trim().isEmpty())
+         stmt.setNull(2, Types.CHAR);
+      else
+         stmt.setString(2, f[1].trim());
+      stmt.setString(3, f[2]);
+      stmt.setString(4, f[3]);
+      stmt.setString(5, f[4].trim());
+   }//end bind
+
+   /**
+    * Method to close the shard connections
+    */
+   public void cleanup () {
+      for (Connection c : _shards) {
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args <file> <dbname>@<port> ...  (the shards in shard order)
+    */
+   public static void main (String[] args) {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            UserImport.class.getName () +
+            " <users file> <dbname>@<port> ...");
+         return;
+      }//end if
+
+      String[] urls = new String[args.length - 1];
+      for (int i = 1; i < args.length; ++i)
+         urls[i - 1] = CafeShardTool.url(args[i]);
+      UserImport importer = null;
+      try {
+         importer = new UserImport(urls);
+         importer.run(args[0]);
+      }catch (SQLException | IOException e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (importer != null)
+            importer.cleanup();
+      }
+   }//end main
+
+}//end UserImport
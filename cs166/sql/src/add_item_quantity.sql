@@ -0,0 +1,3 @@
+-- Adds the quantity column to an existing ItemStatus table.
+-- Rows already loaded count as one item each.
+ALTER TABLE ItemStatus ADD COLUMN quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0);
@@ -0,0 +1,3 @@
+-- Lets the prep time estimator (PrepTimeEstimator.java) read only the item
+-- statuses that changed since its last refresh.
+CREATE INDEX IF NOT EXISTS ItemStatus_lastUpdated ON ItemStatus(lastUpdated);
@@ -27,12 +27,16 @@ CREATE TABLE Orders(
 	total real NOT NULL,
 	PRIMARY KEY(orderid));
 
+-- order ids are reserved by the client in blocks of 1000 (see OrderIdAllocator)
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY 1000;
+
 CREATE TABLE ItemStatus(
 	orderid integer,
 	itemName char(50), 
 	lastUpdated timestamp NOT NULL,
 	status char(20), 
 	comments char(130), 
+	quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid) ON DELETE CASCADE,
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE);
@@ -11,7 +11,7 @@ FROM 'orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+COPY ITEMSTATUS (orderid, itemName, lastUpdated, status, comments)
 FROM 'itemStatus.csv'
 WITH DELIMITER ';';
 
@@ -0,0 +1,3 @@
+-- Lets clients reserve order ids in blocks of 1000 (see OrderIdAllocator).
+-- Run once on databases created before the change.
+ALTER SEQUENCE orders_orderid_seq INCREMENT BY 1000;
@@ -0,0 +1,23 @@
+-- Publishes the orderid of every changed order on the order_status channel,
+-- the status board (StatusBoard.java) and the prep time estimator
+-- (PrepTimeEstimator.java) LISTEN on it.
+CREATE OR REPLACE FUNCTION notify_order_status() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('order_status', OLD.orderid::text);
+	ELSE
+		PERFORM pg_notify('order_status', NEW.orderid::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS orders_status_notify ON Orders;
+CREATE TRIGGER orders_status_notify
+	AFTER INSERT OR UPDATE OR DELETE ON Orders
+	FOR EACH ROW EXECUTE FUNCTION notify_order_status();
+
+DROP TRIGGER IF EXISTS itemstatus_status_notify ON ItemStatus;
+CREATE TRIGGER itemstatus_status_notify
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH ROW EXECUTE FUNCTION notify_order_status();